@@ -0,0 +1,317 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.Request;
+import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyServer;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.embeddedserver.jetty.JettyServerFactory;
+import spark.http.matching.MatcherFilter;
+
+// Non-blocking uploads and downloads for the large-payload routes. The route starts async processing
+// on the underlying Jetty request and returns; from then on the transfer is driven by Servlet 3.1
+// ReadListener/WriteListener callbacks, which only run when the client socket is ready. A slow client
+// therefore holds no thread while it waits, and at most one pooled CHUNK_SIZE buffer.
+//
+// Nothing is sent before the transfer decides it: an upload's status is set once the body has been
+// read and moved into place, so a failed upload is answered with an error status. See install().
+public class AsyncTransfer {
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int MAX_POOLED = 1024;
+    static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    static final long MAX_UPLOAD_BYTES = Long.parseLong(System.getenv().getOrDefault("MAX_UPLOAD_BYTES", String.valueOf(1L << 30)));
+
+    // Servlet streams read and write byte[], so the pool holds heap chunks; a direct buffer would
+    // only add a copy between the socket and the file channel.
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+
+    // Called once the upload is complete in `tmp`; moves it into place and returns the JSON response.
+    interface Completion {
+        String complete(Path tmp) throws IOException;
+    }
+
+    // Releases a transfer's chunk and file once. The chunk only goes back to the pool after a transfer
+    // that finished normally: after a timeout or error Jetty may still be writing from it, since it
+    // does not copy large writes.
+    private static class Cleanup {
+        private final byte[] chunk;
+        private final FileChannel channel;
+        private final Path tmp;
+        private boolean done;
+
+        Cleanup(byte[] chunk, FileChannel channel, Path tmp) {
+            this.chunk = chunk;
+            this.channel = channel;
+            this.tmp = tmp;
+        }
+
+        synchronized void run(boolean finished) {
+            if (done) return;
+            done = true;
+            if (finished) release(chunk);
+            try {
+                channel.close();
+                if (tmp != null) Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Spark writes a route's return value and closes the response unless it is already committed,
+    // which would end an async transfer before it started. This sets up Spark's Jetty server as usual,
+    // except that a response whose request went async counts as committed, so Spark leaves it alone.
+    // Must be called before the first route is mapped.
+    static void install() {
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, (routes, staticFiles, exceptionMapper, hasMultipleHandler) -> {
+            MatcherFilter matcher = new MatcherFilter(routes, staticFiles, exceptionMapper, false, hasMultipleHandler);
+            matcher.init(null);
+            JettyHandler handler = new JettyHandler(new Filter() {
+                @Override
+                public void init(FilterConfig config) {
+                }
+
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+                        throws IOException, ServletException {
+                    HttpServletRequest http = (HttpServletRequest) request;
+                    matcher.doFilter(request, new HttpServletResponseWrapper((HttpServletResponse) response) {
+                        @Override
+                        public boolean isCommitted() {
+                            return super.isCommitted() || http.isAsyncStarted();
+                        }
+                    }, chain);
+                }
+
+                @Override
+                public void destroy() {
+                    matcher.destroy();
+                }
+            });
+            handler.getSessionCookieConfig().setHttpOnly(true);
+            return new EmbeddedJettyServer(new JettyServerFactory() {
+                @Override
+                public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+                    if (maxThreads <= 0) return new Server();
+                    return new Server(new QueuedThreadPool(maxThreads, minThreads > 0 ? minThreads : 8,
+                            threadTimeoutMillis > 0 ? threadTimeoutMillis : 60000));
+                }
+
+                @Override
+                public Server create(ThreadPool threadPool) {
+                    return threadPool != null ? new Server(threadPool) : new Server();
+                }
+            }, handler);
+        });
+    }
+
+    static byte[] acquire() {
+        byte[] chunk = POOL.poll();
+        return chunk != null ? chunk : new byte[CHUNK_SIZE];
+    }
+
+    static void release(byte[] chunk) {
+        if (POOL.size() < MAX_POOLED) POOL.offer(chunk);
+    }
+
+    // Streams the request body into a temp file in `dir`, then hands it to `completion`. A body over
+    // MAX_UPLOAD_BYTES is refused with 413: up front when Content-Length says so, otherwise as soon as
+    // that much has arrived.
+    static Object receive(Request req, Response res, Path dir, Completion completion) throws IOException {
+        if (req.raw().getContentLengthLong() > MAX_UPLOAD_BYTES) throw spark.Spark.halt(413, tooLarge());
+        Files.createDirectories(dir);
+        // Not Files.createTempFile, which makes the file 0600; this one gets the umask's permissions
+        // like any other file the server writes, and keeps them when it is moved into place.
+        Path tmp = Files.createFile(dir.resolve(".upload-" + UUID.randomUUID() + ".tmp"));
+        FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+        AsyncContext context;
+        ServletInputStream in;
+        try {
+            context = start(req, res);
+            in = context.getRequest().getInputStream();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(tmp);
+            fail(req);
+            throw e;
+        }
+        byte[] chunk = acquire();
+        Cleanup cleanup = new Cleanup(chunk, channel, tmp);
+        context.addListener(listener(cleanup));
+
+        in.setReadListener(new ReadListener() {
+            long received;
+            boolean refused;
+
+            @Override
+            public void onDataAvailable() throws IOException {
+                while (!refused && in.isReady() && !in.isFinished()) {
+                    int n = in.read(chunk);
+                    if (n < 0) break;
+                    received += n;
+                    if (received > MAX_UPLOAD_BYTES) {
+                        refused = true;
+                        cleanup.run(false);
+                        HttpServletResponse response = (HttpServletResponse) context.getResponse();
+                        response.setStatus(413);
+                        response.setContentType("application/json");
+                        respond(context, tooLarge());
+                        return;
+                    }
+                    ByteBuffer bytes = ByteBuffer.wrap(chunk, 0, n);
+                    while (bytes.hasRemaining()) channel.write(bytes);
+                }
+            }
+
+            @Override
+            public void onAllDataRead() throws IOException {
+                if (refused) return;
+                channel.close();
+                HttpServletResponse response = (HttpServletResponse) context.getResponse();
+                String body;
+                try {
+                    body = completion.complete(tmp);
+                    response.setStatus(200);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Upload to " + dir + " failed: " + e);
+                    body = MessageServer.gson.toJson(Map.of("status", "error", "error", "upload failed"));
+                    response.setStatus(500);
+                }
+                cleanup.run(true);
+                response.setContentType("application/json");
+                respond(context, body);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                cleanup.run(false);
+                context.complete();
+            }
+        });
+        return "";
+    }
+
+    // Streams `file` to the client as fast as it reads.
+    static Object send(Request req, Response res, Path file, String contentType) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        AsyncContext context;
+        ServletOutputStream out;
+        try {
+            context = start(req, res);
+            ServletResponse response = context.getResponse();
+            response.setContentType(contentType);
+            response.setContentLengthLong(channel.size());
+            out = response.getOutputStream();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            fail(req);
+            throw e;
+        }
+        byte[] chunk = acquire();
+        Cleanup cleanup = new Cleanup(chunk, channel, null);
+        context.addListener(listener(cleanup));
+
+        out.setWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() throws IOException {
+                while (out.isReady()) {
+                    int n = channel.read(ByteBuffer.wrap(chunk));
+                    if (n < 0) {
+                        // isReady() returned true, so the last write from the chunk has completed
+                        cleanup.run(true);
+                        context.complete();
+                        return;
+                    }
+                    out.write(chunk, 0, n);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                cleanup.run(false);
+                context.complete();
+            }
+        });
+        return "";
+    }
+
+    // Starts async mode on the Jetty request and response under Spark's wrappers (Spark's request
+    // wrapper would otherwise buffer the whole body).
+    private static AsyncContext start(Request req, Response res) {
+        ServletRequest request = req.raw();
+        while (request instanceof ServletRequestWrapper) request = ((ServletRequestWrapper) request).getRequest();
+        ServletResponse response = res.raw();
+        while (response instanceof ServletResponseWrapper) response = ((ServletResponseWrapper) response).getResponse();
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(TIMEOUT_MILLIS);
+        return context;
+    }
+
+    // Once async has started Spark no longer writes the response, so a transfer that fails to set up
+    // has to answer and complete it itself.
+    private static void fail(Request req) {
+        if (!req.raw().isAsyncStarted()) return;
+        AsyncContext context = req.raw().getAsyncContext();
+        ((HttpServletResponse) context.getResponse()).setStatus(500);
+        context.complete();
+    }
+
+    private static String tooLarge() {
+        return MessageServer.gson.toJson(Map.of("status", "error", "error", "upload is larger than " + MAX_UPLOAD_BYTES + " bytes"));
+    }
+
+    private static void respond(AsyncContext context, String body) throws IOException {
+        ServletOutputStream out = context.getResponse().getOutputStream();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        out.setWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() throws IOException {
+                if (!out.isReady()) return;
+                out.write(bytes);
+                context.complete();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                context.complete();
+            }
+        });
+    }
+
+    private static AsyncListener listener(Cleanup cleanup) {
+        return new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                cleanup.run(false);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                cleanup.run(false);
+                event.getAsyncContext().complete();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                cleanup.run(false);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        };
+    }
+}
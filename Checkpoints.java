@@ -0,0 +1,236 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Periodic snapshots of the state MessageStore derives from the logs: message counts, recent-message
+// buffers, sealed segment indexes and the write counters. On startup the latest checkpoint is loaded
+// and only the part of each active file written after it is replayed, instead of rescanning every log.
+// The size of every room's log is recorded as well, so the messages written after the checkpoint, in
+// any room, are added back to the write counters.
+//
+// File layout: MAGIC, VERSION, payload length, payload, CRC32 of the payload. It is written to a temp
+// file, fsynced and renamed over the previous one, so a crash mid-write leaves the old checkpoint intact.
+// Version 1 files have no log sizes; they are still restored, without the counter catch-up.
+public class Checkpoints {
+    static final String FILE_NAME = "checkpoint.dat";
+    static final int MAGIC = 0x4d534350;
+    static final int VERSION = 2;
+
+    static class RoomState {
+        final String room;
+        final long count;
+        final long activeBytes;
+        final List<String> recent;
+        final List<LogSegments.Segment> segments;
+
+        RoomState(String room, long count, long activeBytes, List<String> recent, List<LogSegments.Segment> segments) {
+            this.room = room;
+            this.count = count;
+            this.activeBytes = activeBytes;
+            this.recent = recent;
+            this.segments = segments;
+        }
+    }
+
+    private final MessageStore store;
+    private final Path file;
+
+    Checkpoints(MessageStore store) {
+        this.store = store;
+        this.file = store.dataDir.resolve(FILE_NAME);
+    }
+
+    synchronized void write() throws IOException {
+        long[] counters = new long[2];
+        List<RoomState> rooms = new ArrayList<>();
+        Map<String, Long> logBytes = store.capture(() -> {
+            counters[0] = store.messagesWritten.get();
+            counters[1] = store.bytesWritten.get();
+            for (String room : store.loadedRooms()) {
+                RoomState state = store.snapshot(room);
+                if (state != null) rooms.add(state);
+            }
+            return store.logBytes();
+        });
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeLong(counters[0]);
+        out.writeLong(counters[1]);
+        out.writeInt(rooms.size());
+        for (RoomState state : rooms) {
+            writeString(out, state.room);
+            out.writeLong(state.count);
+            out.writeLong(state.activeBytes);
+            out.writeInt(state.recent.size());
+            for (String message : state.recent) writeString(out, message);
+            out.writeInt(state.segments.size());
+            for (LogSegments.Segment segment : state.segments) {
+                writeString(out, segment.path.getFileName().toString());
+                out.writeLong(segment.baseOffset);
+                out.writeInt(segment.count);
+                out.writeInt(segment.index.length);
+                for (int position : segment.index) out.writeInt(position);
+            }
+        }
+        out.writeInt(logBytes.size());
+        for (Map.Entry<String, Long> entry : logBytes.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        out.flush();
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer buffer = ByteBuffer.allocate(12 + bytes.length + 8);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(bytes.length).put(bytes).putLong(crc.getValue()).flip();
+
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Make the rename itself durable. Not every platform lets a directory be opened, hence best effort.
+        try (FileChannel dir = FileChannel.open(file.getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Loads the checkpoint into the store and replays each room's active-file tail. A missing, truncated
+    // or corrupt checkpoint is ignored: rooms are then rebuilt from the logs the first time they are used.
+    // Every length is checked against the bytes actually there before anything is allocated, so a
+    // flipped bit cannot turn into a huge or negative allocation. Returns the number of rooms restored.
+    int restore() throws IOException {
+        if (!Files.exists(file)) return 0;
+        List<RoomState> rooms;
+        long messagesWritten;
+        long bytesWritten;
+        // Null for a version 1 checkpoint.
+        Map<String, Long> logBytes = null;
+        long size = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) return 0;
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) return 0;
+            int length = in.readInt();
+            if (length < 0 || length > size - 20) return 0;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (in.readLong() != crc.getValue()) return 0;
+
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+            messagesWritten = payload.readLong();
+            bytesWritten = payload.readLong();
+            rooms = new ArrayList<>();
+            for (int r = payload.readInt(); r > 0; r--) {
+                String room = readString(payload);
+                long count = payload.readLong();
+                long activeBytes = payload.readLong();
+                List<String> recent = new ArrayList<>();
+                for (int i = payload.readInt(); i > 0; i--) recent.add(readString(payload));
+                List<LogSegments.Segment> segments = new ArrayList<>();
+                for (int i = payload.readInt(); i > 0; i--) {
+                    Path path = store.logPath(room).resolveSibling(readString(payload));
+                    long base = payload.readLong();
+                    int segmentCount = payload.readInt();
+                    int[] index = new int[checkLength(payload, payload.readInt(), 4)];
+                    for (int j = 0; j < index.length; j++) index[j] = payload.readInt();
+                    segments.add(new LogSegments.Segment(path, base, segmentCount, index));
+                }
+                rooms.add(new RoomState(room, count, activeBytes, recent, segments));
+            }
+            if (version >= 2) {
+                logBytes = new HashMap<>();
+                for (int r = payload.readInt(); r > 0; r--) logBytes.put(readString(payload), payload.readLong());
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring corrupt checkpoint: " + e);
+            return 0;
+        }
+
+        store.messagesWritten.set(messagesWritten);
+        store.bytesWritten.set(bytesWritten);
+        int restored = 0;
+        for (RoomState state : rooms) {
+            if (MessageStore.isValidRoom(state.room) && replay(state)) restored++;
+        }
+        if (logBytes != null) {
+            for (Map.Entry<String, Long> entry : store.logBytes().entrySet()) {
+                long before = logBytes.getOrDefault(entry.getKey(), 0L);
+                if (entry.getValue() > before) countWritten(entry.getKey(), before);
+            }
+        }
+        return restored;
+    }
+
+    // Adds the records of a room's log past `from` bytes to the write counters: whatever was appended
+    // after the checkpoint, whether it is still in the active file or has been sealed since. A trailing
+    // line without its '\n' was never acknowledged and is not counted.
+    private void countWritten(String room, long from) throws IOException {
+        long records = 0;
+        long bytes = 0;
+        try (InputStream in = store.openLog(room, from)) {
+            byte[] chunk = new byte[64 * 1024];
+            long position = 0;
+            for (int n; (n = in.read(chunk)) > 0; position += n) {
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] != '\n') continue;
+                    records++;
+                    bytes = position + i + 1;
+                }
+            }
+        }
+        store.messagesWritten.addAndGet(records);
+        store.bytesWritten.addAndGet(bytes);
+    }
+
+    // Applies one room, or returns false if its files no longer match the checkpoint (sealed, moved to
+    // another node or truncated since), in which case the room is left to be rebuilt lazily.
+    private boolean replay(RoomState state) throws IOException {
+        for (LogSegments.Segment segment : state.segments) store.segments.restore(segment);
+        Path log = store.logPath(state.room);
+        List<LogSegments.Segment> sealed = store.segments.list(state.room, log);
+        long activeBase = sealed.isEmpty() ? 0 : sealed.get(sealed.size() - 1).endOffset();
+        long checkpointBase = state.segments.isEmpty() ? 0 : state.segments.get(state.segments.size() - 1).endOffset();
+        if (activeBase != checkpointBase || !Files.exists(log) || Files.size(log) < state.activeBytes) return false;
+
+        ArrayDeque<String> messages = new ArrayDeque<>(state.recent);
+        long count = state.count;
+        try (InputStream in = Files.newInputStream(log)) {
+            in.skipNBytes(state.activeBytes);
+            count += MessageStore.readRecords(in, 0, Integer.MAX_VALUE, message -> {
+                if (messages.size() == MessageStore.RECENT_SIZE) messages.removeFirst();
+                messages.addLast(message);
+            });
+        }
+        store.restore(state.room, count, new ArrayList<>(messages));
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[checkLength(in, in.readInt(), 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // A count of elements of `width` bytes each that the rest of the payload cannot hold is corrupt.
+    private static int checkLength(DataInputStream in, int count, int width) throws IOException {
+        if (count < 0 || (long) count * width > in.available()) throw new IOException("bad length " + count);
+        return count;
+    }
+}
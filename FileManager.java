@@ -0,0 +1,86 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Server-side version of the file-manager operations Html.java performs through the GitHub API:
+// list, download, upload, move/copy and delete, limited to the posts/, chatImages/ and videos/ folders.
+// Changes under posts/<uid>/ are mirrored into the PostIndex.
+public class FileManager {
+    static final List<String> ROOTS = List.of("posts", "chatImages", "videos");
+
+    private final Path dataDir;
+    private final PostIndex posts;
+    // Bumped after every change made through this class, so coalesced listings can tell they are stale.
+    private final AtomicLong generation = new AtomicLong();
+
+    FileManager(Path dataDir, PostIndex posts) {
+        this.dataDir = dataDir.normalize();
+        this.posts = posts;
+    }
+
+    // Also covers posts saved through PostIndex directly, which do not pass through here.
+    long generation() {
+        return generation.get() + posts.generation();
+    }
+
+    // Resolves a client path such as "videos/clip.mp4", or returns null if it is outside the roots.
+    Path resolve(String path) {
+        if (path == null || path.isEmpty()) return null;
+        Path resolved = dataDir.resolve(path).normalize();
+        for (String root : ROOTS) {
+            if (resolved.startsWith(dataDir.resolve(root))) return resolved;
+        }
+        return null;
+    }
+
+    List<Map<String, Object>> list(Path dir) throws IOException {
+        List<Map<String, Object>> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                boolean directory = Files.isDirectory(file);
+                entries.add(Map.of(
+                        "name", file.getFileName().toString(),
+                        "type", directory ? "folder" : "file",
+                        "size", directory ? 0L : Files.size(file)));
+            }
+        }
+        entries.sort(Comparator.comparing(e -> (String) e.get("name")));
+        return entries;
+    }
+
+    // Renames a completed upload over the target, so readers never see a partial file.
+    // `tmp` must be in the target's folder, see AsyncTransfer.receive.
+    void place(Path tmp, Path target) throws IOException {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexed(target, true);
+        generation.incrementAndGet();
+    }
+
+    void move(Path from, Path to, boolean copy) throws IOException {
+        Files.createDirectories(to.getParent());
+        if (copy) {
+            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+            indexed(from, false);
+        }
+        indexed(to, true);
+        generation.incrementAndGet();
+    }
+
+    void delete(Path target) throws IOException {
+        Files.delete(target);
+        indexed(target, false);
+        generation.incrementAndGet();
+    }
+
+    private void indexed(Path file, boolean present) {
+        Path postsDir = dataDir.resolve("posts");
+        if (!file.startsWith(postsDir) || postsDir.relativize(file).getNameCount() != 2) return;
+        PostIndex.Post post = PostIndex.parse(file.getParent().getFileName().toString(), file.getFileName().toString());
+        if (post == null) return;
+        if (present) posts.add(post);
+        else posts.remove(post);
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Remembers the responses of recent writes by their Idempotency-Key header, so a client retrying a
+// post that timed out gets the original acknowledgement instead of writing the message twice. A retry
+// that arrives while the original is still running waits for it. Keys are kept for WINDOW_MILLIS and
+// at most MAX_KEYS of them, evicted oldest first.
+public class IdempotencyWindow {
+    static final int MAX_KEYS = 100_000;
+    static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    interface Write {
+        byte[] run() throws IOException;
+    }
+
+    private static class Entry {
+        final String key;
+        final long createdAt = System.currentTimeMillis();
+        final CompletableFuture<byte[]> response = new CompletableFuture<>();
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>();
+    final AtomicLong duplicatesSuppressed = new AtomicLong();
+
+    // Runs the write unless the key was already used, in which case the first response is returned.
+    // A failed write forgets the key so the client can retry it.
+    byte[] run(String key, Write write) throws IOException {
+        Entry mine = new Entry(key);
+        Entry existing = entries.putIfAbsent(key, mine);
+        if (existing != null) {
+            // Counted once the original has answered: if it fails, await throws and nothing was suppressed.
+            byte[] response = SingleFlight.await(existing.response);
+            duplicatesSuppressed.incrementAndGet();
+            return response;
+        }
+        order.add(mine);
+        evict();
+
+        try {
+            byte[] response = write.run();
+            mine.response.complete(response);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            entries.remove(key, mine);
+            mine.response.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void evict() {
+        long expired = System.currentTimeMillis() - WINDOW_MILLIS;
+        for (Entry oldest; (oldest = order.peek()) != null; ) {
+            if (oldest.createdAt > expired && entries.size() <= MAX_KEYS) return;
+            if (order.remove(oldest)) entries.remove(oldest.key, oldest);
+        }
+    }
+}
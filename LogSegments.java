@@ -0,0 +1,232 @@
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Sealed segments of the room logs. Before the active file of a room would grow past SEGMENT_BYTES it
+// is renamed to <log>.<baseOffset>.seg and never written again, so it can be read through a memory
+// mapping: records are decoded straight out of the page cache instead of going through readAllLines.
+public class LogSegments {
+    static final long SEGMENT_BYTES = 64L << 20;
+    static final int INDEX_INTERVAL = 64;
+    // Mappings are cached in an LRU of this size and counted: the cache holds one reference and every
+    // read in progress another. A mapping is unmapped as soon as its last reference is released, so
+    // at most MAX_MAPPED plus the number of concurrent reads are mapped at any time.
+    static final int MAX_MAPPED = 64;
+
+    static class Segment {
+        final Path path;
+        final long baseOffset;
+        final int count;
+        // Byte position of every INDEX_INTERVAL-th record; segments are small enough for int positions.
+        final int[] index;
+
+        Segment(Path path, long baseOffset, int count, int[] index) {
+            this.path = path;
+            this.baseOffset = baseOffset;
+            this.count = count;
+            this.index = index;
+        }
+
+        long endOffset() {
+            return baseOffset + count;
+        }
+    }
+
+    private final ConcurrentHashMap<String, List<Segment>> segments = new ConcurrentHashMap<>();
+    // Segments restored from a checkpoint, used instead of re-indexing when the room is first listed.
+    private final ConcurrentHashMap<Path, Segment> restored = new ConcurrentHashMap<>();
+    private static class Mapping {
+        final MappedByteBuffer buffer;
+        // Guarded by the mapped map.
+        int references = 1;
+
+        Mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final Map<Path, Mapping> mapped = new LinkedHashMap<Path, Mapping>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Mapping> eldest) {
+            if (size() <= MAX_MAPPED) return false;
+            release(eldest.getValue());
+            return true;
+        }
+    };
+    private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    // Unsafe.invokeCleaner is the only way to unmap before the buffer is collected; without it
+    // (another JDK, or jdk.unsupported left out) mappings are unmapped by the collector as before.
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Mapped segments will be unmapped by the garbage collector: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    static Path segmentPath(Path log, long baseOffset) {
+        return log.resolveSibling(log.getFileName() + "." + String.format("%020d", baseOffset) + ".seg");
+    }
+
+    // Sealed segments of the room in offset order, discovered from disk the first time the room is used.
+    List<Segment> list(String room, Path log) throws IOException {
+        List<Segment> list = segments.get(room);
+        if (list != null) return list;
+        List<Segment> found = new ArrayList<>();
+        if (Files.isDirectory(log.getParent())) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(log.getParent(), log.getFileName() + ".*.seg")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    long base = Long.parseLong(name.substring(log.getFileName().toString().length() + 1, name.length() - ".seg".length()));
+                    Segment known = restored.remove(file);
+                    found.add(known != null && known.baseOffset == base ? known : index(file, base));
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(s -> s.baseOffset));
+        list = new CopyOnWriteArrayList<>(found);
+        List<Segment> raced = segments.putIfAbsent(room, list);
+        return raced != null ? raced : list;
+    }
+
+    void restore(Segment segment) {
+        restored.put(segment.path, segment);
+    }
+
+    // Caller holds the room lock.
+    Segment seal(String room, Path log, long baseOffset) throws IOException {
+        List<Segment> list = list(room, log);
+        Path target = segmentPath(log, baseOffset);
+        Segment indexed = index(log, baseOffset);
+        Files.move(log, target, StandardCopyOption.ATOMIC_MOVE);
+        Segment segment = new Segment(target, baseOffset, indexed.count, indexed.index);
+        list.add(segment);
+        return segment;
+    }
+
+    // Decodes up to limit records starting at offset into out. Returns how many were read.
+    int read(Segment segment, long offset, int limit, List<String> out) throws IOException {
+        Mapping mapping = acquire(segment.path);
+        try {
+            return read(mapping.buffer, segment, offset, limit, out);
+        } finally {
+            release(mapping);
+        }
+    }
+
+    private int read(MappedByteBuffer buffer, Segment segment, long offset, int limit, List<String> out) {
+        int rel = (int) (offset - segment.baseOffset);
+        int pos = segment.index[rel / INDEX_INTERVAL];
+        for (int skip = rel % INDEX_INTERVAL; skip > 0; skip--) pos = lineEnd(buffer, pos) + 1;
+
+        int read = 0;
+        byte[] bytes = scratch.get();
+        for (int i = rel; i < segment.count && read < limit; i++, read++) {
+            int end = lineEnd(buffer, pos);
+            int length = end - pos;
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+                scratch.set(bytes);
+            }
+            buffer.get(pos, bytes, 0, length);
+            out.add(MessageStore.decode(new String(bytes, 0, length, StandardCharsets.UTF_8)));
+            pos = end + 1;
+        }
+        return read;
+    }
+
+    // Drops the cached mappings and deletes the segment files of a room; a read still using one of
+    // them unmaps it when it is done. Caller holds the room lock.
+    void delete(String room, Path log) throws IOException {
+        for (Segment segment : list(room, log)) {
+            synchronized (mapped) {
+                Mapping mapping = mapped.remove(segment.path);
+                if (mapping != null) release(mapping);
+            }
+            Files.deleteIfExists(segment.path);
+        }
+        segments.remove(room);
+    }
+
+    // Mappings held by the cache; reads in progress may hold evicted ones a little longer.
+    int mappedCount() {
+        synchronized (mapped) {
+            return mapped.size();
+        }
+    }
+
+    // Returns the mapping with a reference taken for the caller, who must release it.
+    private Mapping acquire(Path path) throws IOException {
+        synchronized (mapped) {
+            Mapping mapping = mapped.get(path);
+            if (mapping == null) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                }
+                mapped.put(path, mapping);
+            }
+            mapping.references++;
+            return mapping;
+        }
+    }
+
+    private void release(Mapping mapping) {
+        synchronized (mapped) {
+            if (--mapping.references > 0) return;
+        }
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, mapping.buffer);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Could not unmap a segment: " + e);
+        }
+    }
+
+    // Streams the file once to find record boundaries; nothing is mapped until a read needs it.
+    private Segment index(Path path, long baseOffset) throws IOException {
+        int[] index = new int[16];
+        int count = 0;
+        long start = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(path + " is too large to be a segment");
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            for (long position = 0; channel.read(chunk) > 0; chunk.clear()) {
+                chunk.flip();
+                for (int i = 0; i < chunk.limit(); i++, position++) {
+                    if (chunk.get(i) != '\n') continue;
+                    if (count % INDEX_INTERVAL == 0) {
+                        if (count / INDEX_INTERVAL == index.length) index = Arrays.copyOf(index, index.length * 2);
+                        index[count / INDEX_INTERVAL] = (int) start;
+                    }
+                    count++;
+                    start = position + 1;
+                }
+            }
+        }
+        return new Segment(path, baseOffset, count, Arrays.copyOf(index, (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL));
+    }
+
+    private static int lineEnd(MappedByteBuffer buffer, int pos) {
+        while (buffer.get(pos) != '\n') pos++;
+        return pos;
+    }
+}
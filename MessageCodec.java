@@ -0,0 +1,310 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Hand-written JSON for the message routes. Request bodies are read into a per-thread buffer and the
+// fields of {"message": "...", "room": "..."} are decoded straight from the bytes; responses are
+// encoded into a per-thread buffer and written to the output stream. Nothing goes through a String
+// of the whole body or a Map. Bodies of any other shape are left to Gson by the caller.
+public class MessageCodec {
+    static final int MAX_BUFFER = 1 << 20;
+    // Output is flushed past this many bytes. Fixed rather than relative to the buffer, which
+    // writeString grows for long messages, so the buffer stays about this size however long the array.
+    static final int FLUSH_BYTES = 8192;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SAVED_PREFIX = "{\"status\":\"saved\",\"offset\":".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<MessageCodec> CODECS = ThreadLocal.withInitial(MessageCodec::new);
+
+    private byte[] in = new byte[8192];
+    private int length;
+    private int pos;
+    private byte[] scratch = new byte[256];
+    private byte[] out = new byte[8192];
+    private int outLength;
+    private boolean firstMessage;
+
+    // Fields of the last parsed request.
+    String message;
+    String room;
+
+    static MessageCodec get() {
+        return CODECS.get();
+    }
+
+    // The body last passed to readBody, for the Gson fallback and for forwarding.
+    String body() {
+        return new String(in, 0, length, StandardCharsets.UTF_8);
+    }
+
+    byte[] bodyBytes() {
+        return Arrays.copyOf(in, length);
+    }
+
+    void readBody(InputStream stream) throws IOException {
+        // Don't let one huge request pin its buffer to the thread forever.
+        if (in.length > MAX_BUFFER) in = new byte[8192];
+        length = 0;
+        for (int n; (n = stream.read(in, length, in.length - length)) > 0; ) {
+            length += n;
+            if (length == in.length) in = Arrays.copyOf(in, in.length * 2);
+        }
+    }
+
+    // Parses the body as an object whose values are all strings. Returns false for anything else.
+    boolean parseMessage() {
+        message = null;
+        room = null;
+        pos = 0;
+        try {
+            skipWhitespace();
+            if (next() != '{') return false;
+            skipWhitespace();
+            if (peek() == '}') return pos + 1 == trimmedLength();
+            while (true) {
+                skipWhitespace();
+                if (next() != '"') return false;
+                int keyStart = pos;
+                if (!skipString()) return false;
+                boolean isMessage = matches(keyStart, "message");
+                boolean isRoom = matches(keyStart, "room");
+                skipWhitespace();
+                if (next() != ':') return false;
+                skipWhitespace();
+                if (next() != '"') return false;
+                String value = readString();
+                if (value == null) return false;
+                if (isMessage) message = value;
+                if (isRoom) room = value;
+                skipWhitespace();
+                byte separator = next();
+                if (separator == '}') return pos == trimmedLength();
+                if (separator != ',') return false;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    void writeSaved(OutputStream stream, long offset) throws IOException {
+        reset();
+        put(SAVED_PREFIX);
+        putDigits(offset);
+        put('}');
+        stream.write(out, 0, outLength);
+    }
+
+    // Writes a JSON array of strings, flushing the per-thread buffer to the stream as it fills.
+    void writeMessages(OutputStream stream, List<String> messages) throws IOException {
+        startMessages();
+        for (String message : messages) addMessage(stream, message);
+        endMessages(stream);
+    }
+
+    // The same array one message at a time, for a history written while it is read.
+    void startMessages() {
+        reset();
+        put('[');
+        firstMessage = true;
+    }
+
+    void addMessage(OutputStream stream, String message) throws IOException {
+        if (!firstMessage) put(',');
+        firstMessage = false;
+        writeString(message);
+        if (outLength >= FLUSH_BYTES) flush(stream);
+    }
+
+    void endMessages(OutputStream stream) throws IOException {
+        put(']');
+        flush(stream);
+    }
+
+    private void writeString(String s) {
+        put('"');
+        // A char takes at most six bytes, as a unicode escape, so one check up front covers the whole string.
+        int n = s.length();
+        if (outLength + 6L * n + 1 > out.length) out = Arrays.copyOf(out, (int) Math.max(out.length * 2L, outLength + 6L * n + 1));
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out[outLength++] = '\\';
+                out[outLength++] = (byte) c;
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                out[outLength++] = '\\';
+                out[outLength++] = 'u';
+                out[outLength++] = HEX[(c >> 12) & 0xf];
+                out[outLength++] = HEX[(c >> 8) & 0xf];
+                out[outLength++] = HEX[(c >> 4) & 0xf];
+                out[outLength++] = HEX[c & 0xf];
+            } else if (c < 0x80) {
+                out[outLength++] = (byte) c;
+            } else if (c < 0x800) {
+                out[outLength++] = (byte) (0xc0 | (c >> 6));
+                out[outLength++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[outLength++] = (byte) (0xf0 | (cp >> 18));
+                out[outLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[outLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[outLength++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out[outLength++] = '?';
+            } else {
+                out[outLength++] = (byte) (0xe0 | (c >> 12));
+                out[outLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[outLength++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        put('"');
+    }
+
+    private void reset() {
+        if (out.length > MAX_BUFFER) out = new byte[8192];
+        outLength = 0;
+    }
+
+    private void flush(OutputStream stream) throws IOException {
+        stream.write(out, 0, outLength);
+        outLength = 0;
+    }
+
+    private void put(int b) {
+        if (outLength == out.length) out = Arrays.copyOf(out, out.length * 2);
+        out[outLength++] = (byte) b;
+    }
+
+    private void put(byte[] bytes) {
+        for (byte b : bytes) put(b);
+    }
+
+    private void putDigits(long value) {
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) divisor *= 10;
+        for (; divisor > 0; divisor /= 10) put('0' + (int) (value / divisor % 10));
+    }
+
+    private byte next() {
+        if (pos >= length) throw new IndexOutOfBoundsException();
+        return in[pos++];
+    }
+
+    private byte peek() {
+        if (pos >= length) throw new IndexOutOfBoundsException();
+        return in[pos];
+    }
+
+    private void skipWhitespace() {
+        while (pos < length && (in[pos] == ' ' || in[pos] == '\t' || in[pos] == '\n' || in[pos] == '\r')) pos++;
+    }
+
+    private int trimmedLength() {
+        int end = length;
+        while (end > 0 && (in[end - 1] == ' ' || in[end - 1] == '\t' || in[end - 1] == '\n' || in[end - 1] == '\r')) end--;
+        return end;
+    }
+
+    // Moves past a string whose opening quote was consumed; returns false if it is unterminated.
+    private boolean skipString() {
+        while (pos < length) {
+            byte b = in[pos++];
+            if (b == '\\') pos++;
+            else if (b == '"') return true;
+        }
+        return false;
+    }
+
+    private boolean matches(int start, String key) {
+        int keyLength = pos - 1 - start;
+        if (keyLength != key.length()) return false;
+        for (int i = 0; i < keyLength; i++) if (in[start + i] != key.charAt(i)) return false;
+        return true;
+    }
+
+    // Decodes a string whose opening quote was consumed. Strings without escapes are decoded straight
+    // from the body buffer; escaped ones are unescaped into the scratch buffer first.
+    private String readString() {
+        int start = pos;
+        while (pos < length && in[pos] != '"' && in[pos] != '\\') {
+            if ((in[pos] & 0xff) < 0x20) return null;
+            pos++;
+        }
+        if (pos >= length) return null;
+        if (in[pos] == '"') return new String(in, start, pos++ - start, StandardCharsets.UTF_8);
+
+        int n = 0;
+        pos = start;
+        while (true) {
+            if (pos >= length) return null;
+            byte b = in[pos++];
+            if (b == '"') return new String(scratch, 0, n, StandardCharsets.UTF_8);
+            if (n + 4 > scratch.length) scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            if ((b & 0xff) < 0x20) return null;
+            if (b != '\\') {
+                scratch[n++] = b;
+                continue;
+            }
+            if (pos >= length) return null;
+            byte escape = in[pos++];
+            switch (escape) {
+                case '"': case '\\': case '/': scratch[n++] = escape; break;
+                case 'b': scratch[n++] = '\b'; break;
+                case 'f': scratch[n++] = '\f'; break;
+                case 'n': scratch[n++] = '\n'; break;
+                case 'r': scratch[n++] = '\r'; break;
+                case 't': scratch[n++] = '\t'; break;
+                case 'u': {
+                    int c = hex(pos);
+                    if (c < 0) return null;
+                    pos += 4;
+                    // A surrogate pair arrives as two escapes; recombine it so it encodes as one code point.
+                    if (Character.isHighSurrogate((char) c) && pos + 6 <= length && in[pos] == '\\' && in[pos + 1] == 'u') {
+                        int low = hex(pos + 2);
+                        if (low >= 0 && Character.isLowSurrogate((char) low)) {
+                            c = Character.toCodePoint((char) c, (char) low);
+                            pos += 6;
+                        }
+                    }
+                    n = putUtf8(c, n);
+                    break;
+                }
+                default: return null;
+            }
+        }
+    }
+
+    // The four hex digits at start as a char value, or -1 if they are not all hex digits.
+    private int hex(int start) {
+        if (start + 4 > length) return -1;
+        int value = 0;
+        for (int i = start; i < start + 4; i++) {
+            int digit = Character.digit(in[i], 16);
+            if (digit < 0) return -1;
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private int putUtf8(int cp, int n) {
+        if (cp < 0x80) {
+            scratch[n++] = (byte) cp;
+        } else if (cp < 0x800) {
+            scratch[n++] = (byte) (0xc0 | (cp >> 6));
+            scratch[n++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (cp < 0x10000) {
+            scratch[n++] = (byte) (0xe0 | (cp >> 12));
+            scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            scratch[n++] = (byte) (0x80 | (cp & 0x3f));
+        } else {
+            scratch[n++] = (byte) (0xf0 | (cp >> 18));
+            scratch[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            scratch[n++] = (byte) (0x80 | (cp & 0x3f));
+        }
+        return n;
+    }
+}
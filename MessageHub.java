@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+// Fans out appended messages to WebSocket subscribers. Messages are queued per room and flushed
+// once per tick: each flush encodes one frame for the room and hands every subscriber a view of
+// the same bytes, so the cost of serialization does not grow with the number of recipients.
+// A room with no subscribers left is removed from both maps, and every session knows its rooms,
+// so nothing grows with the rooms ever used and a disconnect only touches the session's own rooms.
+public class MessageHub {
+    static final long TICK_MILLIS = 5;
+    // A subscriber this many frames behind is not reading; drop it instead of buffering without bound.
+    static final int MAX_PENDING_FRAMES = 256;
+
+    // Per session: the rooms it subscribed to and its frames not yet written.
+    private static class Subscriber {
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    // Sets and queues are only changed inside compute on their map, so a room is never removed while
+    // a session or message is being added to it.
+    private final ConcurrentHashMap<String, Set<Session>> subscribers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<String>> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Session, Subscriber> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService loop = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "message-hub");
+        t.setDaemon(true);
+        return t;
+    });
+
+    MessageHub() {
+        loop.scheduleWithFixedDelay(this::flush, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void subscribe(String room, Session session) {
+        sessions.computeIfAbsent(session, s -> new Subscriber()).rooms.add(room);
+        subscribers.compute(room, (r, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(session);
+            return set;
+        });
+    }
+
+    void unsubscribe(String room, Session session) {
+        Subscriber subscriber = sessions.get(session);
+        if (subscriber != null) subscriber.rooms.remove(room);
+        remove(room, session);
+    }
+
+    void disconnect(Session session) {
+        Subscriber subscriber = sessions.remove(session);
+        if (subscriber == null) return;
+        for (String room : subscriber.rooms) remove(room, session);
+    }
+
+    private void remove(String room, Session session) {
+        subscribers.computeIfPresent(room, (r, set) -> {
+            set.remove(session);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    void publish(String room, String message) {
+        if (!subscribers.containsKey(room)) return;
+        pending.compute(room, (r, queue) -> {
+            if (queue == null) queue = new ConcurrentLinkedQueue<>();
+            queue.add(message);
+            return queue;
+        });
+    }
+
+    // Called when the node list changed: subscribers of every room that another node owns now are
+    // sent a REDIRECT to it and unsubscribed, since appends to the room no longer happen here.
+    // `owner` maps a room to its new owner, or to null if it is still ours.
+    void redirect(UnaryOperator<String> owner) {
+        for (String room : new ArrayList<>(subscribers.keySet())) {
+            String node = owner.apply(room);
+            if (node == null) continue;
+            Set<Session> moved = subscribers.remove(room);
+            if (moved == null) continue;
+            ByteBuffer frame = MessageSocket.encode(MessageSocket.REDIRECT, room, node);
+            for (Session session : moved) {
+                Subscriber subscriber = sessions.get(session);
+                if (subscriber != null) subscriber.rooms.remove(room);
+                send(session, frame.duplicate());
+            }
+        }
+    }
+
+    // An exception escaping a scheduled task cancels all later runs, so nothing may leave a tick.
+    private void flush() {
+        try {
+            flushRooms();
+        } catch (RuntimeException e) {
+            System.err.println("Broadcast tick failed: " + e);
+        }
+    }
+
+    private void flushRooms() {
+        for (Map.Entry<String, ConcurrentLinkedQueue<String>> entry : pending.entrySet()) {
+            List<String> batch = new ArrayList<>();
+            for (String message; (message = entry.getValue().poll()) != null; ) batch.add(message);
+            // Drops the queue once it is drained; a publish racing with this adds to a new one.
+            pending.computeIfPresent(entry.getKey(), (r, queue) -> queue.isEmpty() ? null : queue);
+            if (batch.isEmpty()) continue;
+            Set<Session> room = subscribers.get(entry.getKey());
+            if (room == null || room.isEmpty()) continue;
+
+            ByteBuffer frame = MessageSocket.encodeBatch(entry.getKey(), batch);
+            for (Session session : room) send(session, frame.duplicate());
+        }
+    }
+
+    // A session that fails here (closed since the isOpen check, or otherwise unusable) is dropped
+    // without affecting the other subscribers of the room.
+    private void send(Session session, ByteBuffer frame) {
+        Subscriber subscriber = sessions.get(session);
+        if (subscriber == null || !session.isOpen()) {
+            disconnect(session);
+            return;
+        }
+        AtomicInteger count = subscriber.inFlight;
+        try {
+            if (count.incrementAndGet() > MAX_PENDING_FRAMES) {
+                disconnect(session);
+                session.close(StatusCode.TRY_AGAIN_LATER, "subscriber too slow");
+                return;
+            }
+            session.getRemote().sendBytes(frame, new WriteCallback() {
+                @Override
+                public void writeSuccess() {
+                    count.decrementAndGet();
+                }
+
+                @Override
+                public void writeFailed(Throwable x) {
+                    disconnect(session);
+                }
+            });
+        } catch (RuntimeException e) {
+            disconnect(session);
+        }
+    }
+}
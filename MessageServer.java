@@ -1,33 +1,441 @@
 import static spark.Spark.*;
 import com.google.gson.*;
+import com.google.gson.stream.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 
 public class MessageServer {
     static final String FILE_PATH = "messages.txt";
+    static final int MAX_PAGE = 1000;
+    static final long CHECKPOINT_SECONDS = Long.parseLong(System.getenv().getOrDefault("CHECKPOINT_SECONDS", "30"));
+    static final int MAX_FEED_PAGE = 200;
+    static final boolean FILE_WRITES = Boolean.parseBoolean(System.getenv("ENABLE_FILE_WRITES"));
     static Gson gson = new Gson();
+    static MessageStore store;
+    static ShardCluster cluster;
+    static MessageHub hub = new MessageHub();
+    static PostIndex posts;
+    static FileManager files;
+    static SingleFlight reads = new SingleFlight();
+    static IdempotencyWindow idempotency = new IdempotencyWindow();
+    static Checkpoints checkpoints;
 
     public static void main(String[] args) {
-        port(8080);
+        int port = Integer.parseInt(System.getenv().getOrDefault("PORT", "8080"));
+        store = new MessageStore(Paths.get(System.getenv().getOrDefault("DATA_DIR", ".")), FILE_PATH);
+        cluster = ShardCluster.fromEnv(System.getenv().getOrDefault("NODE_ADDRESS", "localhost:" + port), store);
+
+        store.listeners.add(hub::publish);
+        cluster.listeners.add(() -> hub.redirect(room -> {
+            String owner = cluster.owner(room);
+            return cluster.self.equals(owner) ? null : owner;
+        }));
+        checkpoints = new Checkpoints(store);
+        try {
+            checkpoints.restore();
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable checkpoint: " + e);
+        }
+        scheduleCheckpoints(checkpoints);
+        posts = new PostIndex(store.dataDir.resolve("posts"));
+        try {
+            posts.load();
+        } catch (IOException e) {
+            System.err.println("Could not index posts: " + e);
+        }
+        files = new FileManager(store.dataDir, posts);
+
+        AsyncTransfer.install();
+        port(port);
+        // WebSocket routes have to be mapped before any HTTP route
+        webSocket("/ws", new MessageSocket(store, hub, cluster));
         enableCORS();
 
         // POST /messages - save message
         post("/messages", (req, res) -> {
             res.type("application/json");
-            Map body = gson.fromJson(req.body(), Map.class);
-            String message = (String) body.get("message");
-            Files.write(Paths.get(FILE_PATH), (message + "\n").getBytes(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-            return gson.toJson(Map.of("status", "saved"));
+            MessageCodec codec = MessageCodec.get();
+            codec.readBody(body(req));
+            String message;
+            String room;
+            if (codec.parseMessage()) {
+                message = codec.message;
+                room = codec.room;
+            } else {
+                Map body = gson.fromJson(codec.body(), Map.class);
+                message = (String) body.get("message");
+                room = (String) body.get("room");
+            }
+            room = room(room != null ? room : queryParam(req, "room"));
+            if (!cluster.isLocal(req, room)) return cluster.forward(req, res, cluster.owner(room), codec.bodyBytes());
+            String key = req.headers("Idempotency-Key");
+            String target = room;
+            if (key == null) {
+                codec.writeSaved(res.raw().getOutputStream(), cluster.write(room, () -> store.append(target, message)));
+                return "";
+            }
+            return idempotency.run(room + "\n" + key, () -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+                codec.writeSaved(out, cluster.write(target, () -> store.append(target, message)));
+                return out.toByteArray();
+            });
         });
 
-        // GET /messages - read all messages
+        // POST /messages:batch - save a JSON array or NDJSON stream of messages with one write
+        post("/messages:batch", (req, res) -> {
+            res.type("application/json");
+            String room = room(queryParam(req, "room"));
+            if (!cluster.isLocal(req, room)) return cluster.forward(req, res, cluster.owner(room));
+            String key = req.headers("Idempotency-Key");
+            if (key == null) return saveBatch(req, room);
+            return idempotency.run(room + "\n" + key, () -> saveBatch(req, room).getBytes(StandardCharsets.UTF_8));
+        });
+
+        // GET /messages - read all messages, or a page of them with ?offset=&limit=
         get("/messages", (req, res) -> {
             res.type("application/json");
-            if (!Files.exists(Paths.get(FILE_PATH))) return "[]";
-            List<String> messages = Files.readAllLines(Paths.get(FILE_PATH));
-            return gson.toJson(messages);
+            String room = room(req.queryParams("room"));
+            if (!cluster.isLocal(req, room)) return cluster.forward(req, res, cluster.owner(room));
+            if (req.queryParams("offset") == null) {
+                // A whole history can be any size, so it is written to the response as it is read
+                // rather than built once and shared between coalesced readers like a page is.
+                OutputStream out = res.raw().getOutputStream();
+                MessageCodec codec = MessageCodec.get();
+                codec.startMessages();
+                store.stream(room, store.size(room), message -> codec.addMessage(out, message));
+                codec.endMessages(out);
+                return "";
+            }
+            long offset;
+            int limit;
+            try {
+                offset = Long.parseLong(req.queryParams("offset"));
+                limit = Math.min(Integer.parseInt(req.queryParamOrDefault("limit", "100")), MAX_PAGE);
+            } catch (NumberFormatException e) {
+                halt(400, gson.toJson(Map.of("error", "offset and limit must be numbers")));
+                return null;
+            }
+            if (offset < 0 || limit < 1) halt(400, gson.toJson(Map.of("error", "offset must be >= 0 and limit >= 1")));
+            long from = offset;
+            int count = limit;
+            // The room's version is part of the key, so a read never joins one that started before a write it must see.
+            String flight = "messages\n" + room + "\n" + store.version(room);
+            return reads.run(flight + "\n" + offset + "\n" + limit, () -> serialize(store.read(room, from, count)));
+        });
+
+        // POST /posts/:uid?name=<filename> - store an upload as posts/<uid>/<epochMillis>_<filename>
+        post("/posts/:uid", (req, res) -> {
+            res.type("application/json");
+            String uid = req.params(":uid");
+            String name = queryParam(req, "name");
+            if (!PostIndex.USER_ID.matcher(uid).matches()) halt(400, gson.toJson(Map.of("error", "invalid user id")));
+            if (!isPlainFileName(name)) halt(400, gson.toJson(Map.of("error", "invalid file name")));
+            return AsyncTransfer.receive(req, res, posts.postsDir().resolve(uid), tmp -> {
+                PostIndex.Post post = savePost(uid, name, tmp);
+                return gson.toJson(Map.of("status", "saved", "path", "posts/" + uid + "/" + post.fileName()));
+            });
+        });
+
+        // GET /feed?users=a,b&before=<ts>&limit=N - newest posts of the given users, before ts
+        get("/feed", (req, res) -> {
+            res.type("application/json");
+            String users = req.queryParams("users");
+            if (users == null || users.isBlank()) halt(400, gson.toJson(Map.of("error", "users is required")));
+            long before;
+            int limit;
+            try {
+                before = Long.parseLong(req.queryParamOrDefault("before", String.valueOf(Long.MAX_VALUE)));
+                limit = Math.min(Integer.parseInt(req.queryParamOrDefault("limit", "50")), MAX_FEED_PAGE);
+            } catch (NumberFormatException e) {
+                halt(400, gson.toJson(Map.of("error", "before and limit must be numbers")));
+                return null;
+            }
+            long from = before;
+            int count = Math.max(limit, 0);
+            // The index generation is part of the key, so a feed never joins one computed before a post it must list.
+            return reads.run("feed\n" + posts.generation() + "\n" + users + "\n" + before + "\n" + count, () -> {
+                List<Map<String, Object>> feed = new ArrayList<>();
+                for (PostIndex.Post post : posts.feed(Arrays.asList(users.split(",")), from, count)) {
+                    feed.add(Map.of("uid", post.uid, "timestamp", post.timestamp, "name", post.name,
+                            "path", "posts/" + post.uid + "/" + post.fileName()));
+                }
+                return gson.toJson(feed).getBytes(StandardCharsets.UTF_8);
+            });
+        });
+
+        // GET /files?path=<folder> - list a folder under posts/, chatImages/ or videos/
+        get("/files", (req, res) -> {
+            res.type("application/json");
+            Path dir = filePath(req.queryParams("path"));
+            if (!Files.isDirectory(dir)) halt(404, gson.toJson(Map.of("error", "no such folder")));
+            return reads.run("files\n" + files.generation() + "\n" + dir, () -> gson.toJson(files.list(dir)).getBytes(StandardCharsets.UTF_8));
+        });
+
+        // GET /files/content?path=<file> - download a file
+        get("/files/content", (req, res) -> {
+            Path file = filePath(req.queryParams("path"));
+            if (!Files.isRegularFile(file)) halt(404, gson.toJson(Map.of("error", "no such file")));
+            String type = Files.probeContentType(file);
+            return AsyncTransfer.send(req, res, file, type != null ? type : "application/octet-stream");
+        });
+
+        // Uploads, moves and deletes carry no authentication and every origin is allowed, so they are
+        // refused unless the server runs with ENABLE_FILE_WRITES=true, as LoadGenerator --spawn starts it.
+        before("/files/*", (req, res) -> {
+            if (!FILE_WRITES && !"GET".equals(req.requestMethod()) && !"OPTIONS".equals(req.requestMethod())) {
+                halt(403, gson.toJson(Map.of("error", "file writes are disabled on this server")));
+            }
+        });
+
+        // PUT /files/content?path=<file> - upload a file, replacing any existing one
+        put("/files/content", (req, res) -> {
+            res.type("application/json");
+            Path file = filePath(queryParam(req, "path"));
+            if (Files.isDirectory(file)) halt(400, gson.toJson(Map.of("error", "path is a folder")));
+            return AsyncTransfer.receive(req, res, file.getParent(), tmp -> {
+                files.place(tmp, file);
+                return gson.toJson(Map.of("status", "saved"));
+            });
+        });
+
+        // POST /files/move?from=<file>&to=<file>[&copy=true] - move or copy a file
+        post("/files/move", (req, res) -> {
+            res.type("application/json");
+            Path from = filePath(req.queryParams("from"));
+            Path to = filePath(req.queryParams("to"));
+            if (!Files.isRegularFile(from)) halt(404, gson.toJson(Map.of("error", "no such file")));
+            files.move(from, to, "true".equals(req.queryParams("copy")));
+            return gson.toJson(Map.of("status", "saved"));
+        });
+
+        // DELETE /files/content?path=<file> - delete a file
+        delete("/files/content", (req, res) -> {
+            res.type("application/json");
+            Path file = filePath(req.queryParams("path"));
+            if (!Files.isRegularFile(file)) halt(404, gson.toJson(Map.of("error", "no such file")));
+            files.delete(file);
+            return gson.toJson(Map.of("status", "deleted"));
+        });
+
+        // GET /metrics - store, read coalescing and write dedup counters, plus live threads and used heap
+        get("/metrics", (req, res) -> {
+            res.type("application/json");
+            Runtime runtime = Runtime.getRuntime();
+            return gson.toJson(Map.of(
+                    "threads", ManagementFactory.getThreadMXBean().getThreadCount(),
+                    "heapUsedBytes", runtime.totalMemory() - runtime.freeMemory(),
+                    "messagesWritten", store.messagesWritten.get(),
+                    "bytesWritten", store.bytesWritten.get(),
+                    "readRequests", reads.calls.get(),
+                    "readExecutions", reads.executions.get(),
+                    "readCoalescingRatio", reads.coalescingRatio(),
+                    "duplicateWritesSuppressed", idempotency.duplicatesSuppressed.get()));
+        });
+
+        // The room is moving between nodes, or the request was routed with a different ring than ours
+        exception(ShardCluster.NotOwnerException.class, (e, req, res) -> {
+            res.status(503);
+            res.type("application/json");
+            res.header("Retry-After", "1");
+            res.body(gson.toJson(Map.of("error", "room is moving to another node, retry")));
+        });
+
+        // The owning node did not answer a forwarded request in time
+        exception(HttpTimeoutException.class, (e, req, res) -> {
+            res.status(504);
+            res.type("application/json");
+            res.body(gson.toJson(Map.of("error", "owner node timed out")));
         });
+
+        if (cluster.isClustered()) clusterRoutes();
+    }
+
+    // Node-to-node and operator routes. Only mapped when CLUSTER_NODES is set, and every request has
+    // to carry the cluster secret.
+    private static void clusterRoutes() {
+        before("/cluster/*", (req, res) -> {
+            if (!cluster.isAuthorized(req)) halt(403, gson.toJson(Map.of("error", "cluster secret required")));
+        });
+
+        // GET /cluster/nodes - current ring membership
+        get("/cluster/nodes", (req, res) -> {
+            res.type("application/json");
+            return gson.toJson(Map.of("self", cluster.self, "nodes", cluster.ring().nodes()));
+        });
+
+        // POST /cluster/nodes - replace the node list and hand off rooms this node no longer owns.
+        // Other nodes send ?phase=prepare|transfer|complete, see ShardCluster.
+        post("/cluster/nodes", (req, res) -> {
+            res.type("application/json");
+            Map body = gson.fromJson(req.body(), Map.class);
+            List<String> nodes = (List<String>) body.get("nodes");
+            if (nodes == null || nodes.isEmpty()) halt(400, gson.toJson(Map.of("error", "nodes is required")));
+            if (!cluster.isForwarded(req)) {
+                return gson.toJson(Map.of("status", "rebalanced", "moved", cluster.rebalance(nodes, req.body())));
+            }
+            String phase = String.valueOf(req.queryParams("phase"));
+            switch (phase) {
+                case "prepare":
+                    String previous = req.headers(ShardCluster.PREVIOUS_HEADER);
+                    if (previous == null) halt(400, gson.toJson(Map.of("error", "previous node list is required")));
+                    cluster.prepare(nodes, ShardRing.parse(previous));
+                    return gson.toJson(Map.of("status", "prepared"));
+                case "transfer":
+                    return gson.toJson(Map.of("status", "transferred", "moved", cluster.transfer()));
+                case "complete":
+                    cluster.complete();
+                    return gson.toJson(Map.of("status", "rebalanced"));
+                default:
+                    throw halt(400, gson.toJson(Map.of("error", "unknown phase " + phase)));
+            }
+        });
+
+        // POST /cluster/rooms/import - receive a room log streamed from its previous owner
+        post("/cluster/rooms/import", (req, res) -> {
+            res.type("application/json");
+            String room = room(req.queryParams("room"));
+            try (InputStream in = body(req)) {
+                store.importLog(room, in);
+            }
+            cluster.imported(room);
+            // Otherwise a restart before the next checkpoint would count the imported history as
+            // messages written on this node.
+            checkpoints.write();
+            return gson.toJson(Map.of("status", "imported"));
+        });
+    }
+
+    // Reads a parameter from the query string only. req.queryParams would make Jetty parse a
+    // form-encoded body, which the upload routes have to leave unread for AsyncTransfer.
+    private static String queryParam(spark.Request req, String name) {
+        if (req.queryString() == null) return null;
+        for (String pair : req.queryString().split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            if (name.equals(URLDecoder.decode(key, StandardCharsets.UTF_8))) {
+                return equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static Path filePath(String path) {
+        Path resolved = files.resolve(path);
+        if (resolved == null) halt(400, gson.toJson(Map.of("error", "path must be under " + FileManager.ROOTS)));
+        return resolved;
+    }
+
+    private static boolean isPlainFileName(String name) {
+        return name != null && !name.isEmpty() && !name.startsWith(".")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0;
+    }
+
+    // Bumps the timestamp on a name clash so two uploads in the same millisecond both keep their file.
+    // Without REPLACE_EXISTING the move fails rather than overwrite an existing post.
+    private static PostIndex.Post savePost(String uid, String name, Path upload) throws IOException {
+        Path dir = posts.postsDir().resolve(uid);
+        for (long timestamp = System.currentTimeMillis(); ; timestamp++) {
+            PostIndex.Post post = new PostIndex.Post(uid, timestamp, name);
+            try {
+                Files.move(upload, dir.resolve(post.fileName()));
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            posts.add(post);
+            return post;
+        }
+    }
+
+    private static void scheduleCheckpoints(Checkpoints checkpoints) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        Runnable write = () -> {
+            try {
+                checkpoints.write();
+            } catch (IOException e) {
+                System.err.println("Checkpoint failed: " + e);
+            }
+        };
+        scheduler.scheduleWithFixedDelay(write, CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(write, "checkpoint-on-exit"));
+    }
+
+    private static String saveBatch(spark.Request req, String room) throws IOException {
+        MessageStore.Batch batch;
+        try {
+            batch = readBatch(body(req));
+        } catch (IOException | IllegalStateException e) {
+            throw halt(400, gson.toJson(Map.of("error", "malformed batch: " + e.getMessage())));
+        }
+        if (batch.size() == 0) return gson.toJson(Map.of("status", "saved", "count", 0));
+        long first = cluster.write(room, () -> store.appendBatch(room, batch));
+        return gson.toJson(Map.of("status", "saved", "count", batch.size(),
+                "firstOffset", first, "lastOffset", first + batch.size() - 1));
+    }
+
+    // The body as Jetty receives it. Spark's request wrapper reads the whole body into a byte array
+    // the first time its input stream is asked for, which a streaming parse has to get around.
+    private static InputStream body(spark.Request req) throws IOException {
+        ServletRequest request = req.raw();
+        while (request instanceof ServletRequestWrapper) request = ((ServletRequestWrapper) request).getRequest();
+        return request.getInputStream();
+    }
+
+    // Coalesced readers share the result, so a page is built in memory rather than streamed to the
+    // response the way a whole history is.
+    private static byte[] serialize(List<String> messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageCodec.get().writeMessages(out, messages);
+        return out.toByteArray();
+    }
+
+    // Streams the batch with JsonReader instead of building it as a tree, encoding each message into
+    // the batch as soon as it is parsed. Accepts one JSON array or whitespace-separated top-level values
+    // (NDJSON); each value is a string or {"message": "..."}.
+    private static MessageStore.Batch readBatch(InputStream in) throws IOException {
+        MessageStore.Batch batch = new MessageStore.Batch();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) batch.add(readBatchEntry(reader));
+                reader.endArray();
+            } else {
+                while (reader.peek() != JsonToken.END_DOCUMENT) batch.add(readBatchEntry(reader));
+            }
+        }
+        return batch;
+    }
+
+    private static String readBatchEntry(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.STRING) return reader.nextString();
+        String message = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("message".equals(reader.nextName())) message = reader.nextString();
+            else reader.skipValue();
+        }
+        reader.endObject();
+        if (message == null) throw new IllegalStateException("entry without a message");
+        return message;
+    }
+
+    // Rooms are optional; messages without one go to the default room in messages.txt.
+    private static String room(String room) {
+        if (room == null) return MessageStore.DEFAULT_ROOM;
+        if (!MessageStore.isValidRoom(room)) halt(400, gson.toJson(Map.of("error", "invalid room")));
+        return room;
     }
 
     private static void enableCORS() {
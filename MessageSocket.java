@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.*;
+
+// /ws endpoint. Every frame is binary:
+//   client -> server: [op:1][roomLength:1][room][payload], op is SUBSCRIBE, UNSUBSCRIBE or SEND
+//   server -> client: [MESSAGES][roomLength:1][room][count:4] then count x [length:4][utf-8 message]
+//                     [SAVED][roomLength:1][room][offset:8] once a SEND is in the log
+//                     [REDIRECT][roomLength:1][room][owner address] when another node owns the room,
+//                       also sent to subscribers when the room moves to another node
+//                     [ERROR][roomLength:1][room][utf-8 reason]
+@WebSocket
+public class MessageSocket {
+    static final byte SUBSCRIBE = 1;
+    static final byte UNSUBSCRIBE = 2;
+    static final byte SEND = 3;
+    static final byte MESSAGES = 4;
+    static final byte REDIRECT = 5;
+    static final byte ERROR = 6;
+    static final byte SAVED = 7;
+
+    private final MessageStore store;
+    private final MessageHub hub;
+    private final ShardCluster cluster;
+
+    MessageSocket(MessageStore store, MessageHub hub, ShardCluster cluster) {
+        this.store = store;
+        this.hub = hub;
+        this.cluster = cluster;
+    }
+
+    @OnWebSocketClose
+    public void onClose(Session session, int statusCode, String reason) {
+        hub.disconnect(session);
+    }
+
+    @OnWebSocketMessage
+    public void onMessage(Session session, byte[] buf, int offset, int length) throws IOException {
+        if (length < 2 || length < 2 + (buf[offset + 1] & 0xff)) {
+            session.close(StatusCode.BAD_PAYLOAD, "malformed frame");
+            return;
+        }
+        byte op = buf[offset];
+        int roomLength = buf[offset + 1] & 0xff;
+        String room = new String(buf, offset + 2, roomLength, StandardCharsets.UTF_8);
+        int payload = offset + 2 + roomLength;
+        if (!MessageStore.isValidRoom(room)) {
+            reply(session, ERROR, room, "invalid room");
+            return;
+        }
+        // Subscribers only see appends made on this node, so clients must talk to the room's owner.
+        String owner = cluster.owner(room);
+        if (!cluster.self.equals(owner)) {
+            reply(session, REDIRECT, room, owner);
+            return;
+        }
+
+        switch (op) {
+            case SUBSCRIBE:
+                hub.subscribe(room, session);
+                // The ring may have changed since the owner check, after the hub redirected the room
+                String current = cluster.owner(room);
+                if (!cluster.self.equals(current)) {
+                    hub.unsubscribe(room, session);
+                    reply(session, REDIRECT, room, current);
+                }
+                break;
+            case UNSUBSCRIBE:
+                hub.unsubscribe(room, session);
+                break;
+            case SEND:
+                String message = new String(buf, payload, offset + length - payload, StandardCharsets.UTF_8);
+                try {
+                    long saved = cluster.write(room, () -> store.append(room, message));
+                    send(session, ByteBuffer.allocate(2 + roomLength + 8)
+                            .put(SAVED).put((byte) roomLength).put(buf, offset + 2, roomLength).putLong(saved).flip());
+                } catch (ShardCluster.NotOwnerException e) {
+                    // The room moved away since the owner check above, or its log is still on its way here
+                    String moved = cluster.owner(room);
+                    if (cluster.self.equals(moved)) reply(session, ERROR, room, "room is moving, retry");
+                    else reply(session, REDIRECT, room, moved);
+                }
+                break;
+            default:
+                reply(session, ERROR, room, "unknown op " + op);
+        }
+    }
+
+    // Sent asynchronously like MessageHub's frames: a blocking send overlapping one of those fails
+    // with "Blocking message pending".
+    private void reply(Session session, byte op, String room, String text) {
+        send(session, encode(op, room, text));
+    }
+
+    private void send(Session session, ByteBuffer frame) {
+        try {
+            session.getRemote().sendBytes(frame, new WriteCallback() {
+                @Override
+                public void writeSuccess() {
+                }
+
+                @Override
+                public void writeFailed(Throwable x) {
+                    hub.disconnect(session);
+                }
+            });
+        } catch (RuntimeException e) {
+            hub.disconnect(session);
+        }
+    }
+
+    static ByteBuffer encode(byte op, String room, String text) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(2 + roomBytes.length + textBytes.length);
+        return frame.put(op).put((byte) roomBytes.length).put(roomBytes).put(textBytes).flip();
+    }
+
+    static ByteBuffer encodeBatch(String room, List<String> messages) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[][] encoded = new byte[messages.size()][];
+        int size = 2 + roomBytes.length + 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = messages.get(i).getBytes(StandardCharsets.UTF_8);
+            size += 4 + encoded[i].length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put(MESSAGES).put((byte) roomBytes.length).put(roomBytes).putInt(encoded.length);
+        for (byte[] message : encoded) frame.putInt(message.length).put(message);
+        return frame.flip();
+    }
+}
@@ -0,0 +1,597 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+// Append-only message logs, one file per room. The default room keeps using messages.txt.
+// Full active files are sealed into read-only segments, see LogSegments.
+public class MessageStore {
+    static final String DEFAULT_ROOM = "";
+    static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    static final int RECENT_SIZE = 256;
+
+    final Path dataDir;
+    final Path defaultLog;
+    final Path roomsDir;
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+    // Messages in each room's log, counted on first use. Only read or written under the room lock.
+    private final ConcurrentHashMap<String, Long> counts = new ConcurrentHashMap<>();
+    // The last RECENT_SIZE messages of each room, newest last; may hold fewer for a room not written since startup.
+    private final ConcurrentHashMap<String, ArrayDeque<String>> recent = new ConcurrentHashMap<>();
+    final AtomicLong messagesWritten = new AtomicLong();
+    final AtomicLong bytesWritten = new AtomicLong();
+    // Called with (room, message) after each message is written, in log order for a given room.
+    final List<BiConsumer<String, String>> listeners = new CopyOnWriteArrayList<>();
+    final LogSegments segments = new LogSegments();
+    // Everything that changes a log, a count or a recent buffer holds the read side while it does;
+    // capture() holds the write side, so a checkpoint sees no change half done. It is always taken
+    // inside the room lock, never the other way round.
+    private final ReadWriteLock changes = new ReentrantReadWriteLock();
+
+    interface Capture<T> {
+        T run() throws IOException;
+    }
+
+    interface Sink {
+        void accept(String message) throws IOException;
+    }
+
+    MessageStore(Path dataDir, String defaultFile) {
+        this.dataDir = dataDir;
+        this.defaultLog = dataDir.resolve(defaultFile);
+        this.roomsDir = dataDir.resolve("rooms");
+    }
+
+    // Records are newline-terminated and offsets count newlines, so line breaks inside a message are
+    // written as \n and \r, and a backslash as \\. Any other backslash is left as is, which keeps
+    // lines written before escaping readable.
+    static String encode(String message) {
+        if (message.indexOf('\\') < 0 && message.indexOf('\n') < 0 && message.indexOf('\r') < 0) return message;
+        StringBuilder out = new StringBuilder(message.length() + 8);
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\\') out.append("\\\\");
+            else if (c == '\n') out.append("\\n");
+            else if (c == '\r') out.append("\\r");
+            else out.append(c);
+        }
+        return out.toString();
+    }
+
+    static String decode(String record) {
+        if (record.indexOf('\\') < 0) return record;
+        StringBuilder out = new StringBuilder(record.length());
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            char next = i + 1 < record.length() ? record.charAt(i + 1) : 0;
+            if (c == '\\' && (next == 'n' || next == 'r' || next == '\\')) {
+                out.append(next == 'n' ? '\n' : next == 'r' ? '\r' : '\\');
+                i++;
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    static boolean isValidRoom(String room) {
+        return DEFAULT_ROOM.equals(room) || ROOM_NAME.matcher(room).matches();
+    }
+
+    Path logPath(String room) {
+        return DEFAULT_ROOM.equals(room) ? defaultLog : roomsDir.resolve(room + ".txt");
+    }
+
+    Object lock(String room) {
+        return locks.computeIfAbsent(room, r -> new Object());
+    }
+
+    // Returns the offset of the message, i.e. its zero-based position in the room's log.
+    long append(String room, String message) throws IOException {
+        Path log = logPath(room);
+        synchronized (lock(room)) {
+            changes.readLock().lock();
+            try {
+                long offset = count(room);
+                byte[] bytes = (encode(message) + "\n").getBytes(StandardCharsets.UTF_8);
+                write(room, log, new ByteBuffer[] {ByteBuffer.wrap(bytes)}, false);
+                counts.put(room, offset + 1);
+                remember(room, Collections.singletonList(message));
+                messagesWritten.incrementAndGet();
+                bytesWritten.addAndGet(bytes.length);
+                for (BiConsumer<String, String> listener : listeners) listener.accept(room, message);
+                return offset;
+            } finally {
+                changes.readLock().unlock();
+            }
+        }
+    }
+
+    // Messages encoded into log records as they are added, so a batch is written from the chunks it
+    // was built in and never held as a list of strings. A record never spans two chunks.
+    static class Batch {
+        private static final int CHUNK_BYTES = 64 * 1024;
+
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        // The last RECENT_SIZE messages, for the room's recent buffer.
+        private final ArrayDeque<String> tail = new ArrayDeque<>();
+        private int count;
+        private long bytes;
+
+        void add(String message) {
+            byte[] record = encode(message).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || chunk.remaining() < record.length + 1) {
+                chunk = ByteBuffer.allocate(Math.max(CHUNK_BYTES, record.length + 1));
+                chunks.add(chunk);
+            }
+            chunk.put(record).put((byte) '\n');
+            count++;
+            bytes += record.length + 1;
+            if (tail.size() == RECENT_SIZE) tail.removeFirst();
+            tail.addLast(message);
+        }
+
+        int size() {
+            return count;
+        }
+
+        private ByteBuffer[] buffers() {
+            ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+            for (int i = 0; i < buffers.length; i++) buffers[i] = chunks.get(i).duplicate().flip();
+            return buffers;
+        }
+
+        // Decodes the messages again, in order; only listeners need them one by one.
+        private void forEach(Consumer<String> action) {
+            for (ByteBuffer chunk : chunks) {
+                byte[] array = chunk.array();
+                for (int start = 0, end; start < chunk.position(); start = end + 1) {
+                    end = start;
+                    while (array[end] != '\n') end++;
+                    action.accept(decode(new String(array, start, end - start, StandardCharsets.UTF_8)));
+                }
+            }
+        }
+    }
+
+    // Writes all messages with a single gathering write and a single fsync, or one of each per segment
+    // if the batch does not fit in the active file. The batch gets contiguous offsets starting at the
+    // returned one.
+    long appendBatch(String room, Batch batch) throws IOException {
+        Path log = logPath(room);
+        synchronized (lock(room)) {
+            changes.readLock().lock();
+            try {
+                long offset = count(room);
+                write(room, log, batch.buffers(), true);
+                counts.put(room, offset + batch.size());
+                remember(room, new ArrayList<>(batch.tail));
+                messagesWritten.addAndGet(batch.size());
+                bytesWritten.addAndGet(batch.bytes);
+                if (!listeners.isEmpty()) {
+                    batch.forEach(message -> {
+                        for (BiConsumer<String, String> listener : listeners) listener.accept(room, message);
+                    });
+                }
+                return offset;
+            } finally {
+                changes.readLock().unlock();
+            }
+        }
+    }
+
+    // Caller holds the room lock.
+    private void remember(String room, List<String> messages) {
+        ArrayDeque<String> buffer = recent.computeIfAbsent(room, r -> new ArrayDeque<>());
+        for (String message : messages.subList(Math.max(0, messages.size() - RECENT_SIZE), messages.size())) {
+            if (buffer.size() == RECENT_SIZE) buffer.removeFirst();
+            buffer.addLast(message);
+        }
+    }
+
+    // Appends whole records to the active file. Whenever the next records would take it past
+    // SEGMENT_BYTES it is sealed first, so a segment only exceeds that size when it holds a single
+    // record that does. Caller holds the room lock.
+    private void write(String room, Path log, ByteBuffer[] records, boolean force) throws IOException {
+        Files.createDirectories(log.getParent());
+        for (int next = 0; next < records.length; ) {
+            long size = Files.exists(log) ? Files.size(log) : 0;
+            long space = LogSegments.SEGMENT_BYTES - size;
+            List<ByteBuffer> fitting = new ArrayList<>();
+            while (next < records.length && records[next].remaining() <= space) {
+                space -= records[next].remaining();
+                fitting.add(records[next++]);
+            }
+            if (next < records.length) {
+                ByteBuffer rest = records[next];
+                int end = lastRecordEnd(rest, space);
+                if (end == rest.position() && size == 0 && fitting.isEmpty()) end = firstRecordEnd(rest);
+                if (end > rest.position()) {
+                    fitting.add(rest.slice(rest.position(), end - rest.position()));
+                    rest.position(end);
+                }
+                if (!rest.hasRemaining()) next++;
+            }
+            if (!fitting.isEmpty()) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    ByteBuffer[] buffers = fitting.toArray(new ByteBuffer[0]);
+                    long remaining = 0;
+                    for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+                    while (remaining > 0) remaining -= channel.write(buffers);
+                    if (force) channel.force(false);
+                }
+            }
+            if (next < records.length) seal(room, log);
+        }
+        if (Files.exists(log) && Files.size(log) >= LogSegments.SEGMENT_BYTES) seal(room, log);
+    }
+
+    // Position just past the last '\n' among the next `bytes` bytes of the buffer, or its position if none.
+    private static int lastRecordEnd(ByteBuffer buffer, long bytes) {
+        for (int i = (int) Math.min(buffer.limit(), buffer.position() + bytes) - 1; i >= buffer.position(); i--) {
+            if (buffer.get(i) == '\n') return i + 1;
+        }
+        return buffer.position();
+    }
+
+    private static int firstRecordEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) if (buffer.get(i) == '\n') return i + 1;
+        return buffer.limit();
+    }
+
+    // Caller holds the room lock. An empty active file is left behind so the room stays listed.
+    private void seal(String room, Path log) throws IOException {
+        segments.seal(room, log, activeBase(room));
+        Files.createFile(log);
+    }
+
+    // Offset of the first message in the active file.
+    private long activeBase(String room) throws IOException {
+        List<LogSegments.Segment> sealed = segments.list(room, logPath(room));
+        return sealed.isEmpty() ? 0 : sealed.get(sealed.size() - 1).endOffset();
+    }
+
+    private long count(String room) throws IOException {
+        Long count = counts.get(room);
+        if (count != null) return count;
+        long lines = activeBase(room);
+        Path log = logPath(room);
+        if (Files.exists(log)) {
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+                while (channel.read(chunk) > 0) {
+                    chunk.flip();
+                    while (chunk.hasRemaining()) if (chunk.get() == '\n') lines++;
+                    chunk.clear();
+                }
+            }
+        }
+        counts.put(room, lines);
+        return lines;
+    }
+
+    // Changes whenever a message is appended to the room; -1 until the room's count is loaded.
+    long version(String room) {
+        return counts.getOrDefault(room, -1L);
+    }
+
+    // Sealed segments are decoded from their mappings; only the active file is read as a stream.
+    // Only the recent-buffer fast path takes the room lock. File reads do not: if the active file
+    // was sealed while we read it, the read is retried.
+    List<String> read(String room, long offset, int limit) throws IOException {
+        synchronized (lock(room)) {
+            Long count = counts.get(room);
+            ArrayDeque<String> buffer = recent.get(room);
+            if (count != null && buffer != null && offset >= count - buffer.size()) {
+                List<String> tail = new ArrayList<>(buffer);
+                int from = (int) Math.min(tail.size(), offset - (count - buffer.size()));
+                return new ArrayList<>(tail.subList(from, (int) Math.min(tail.size(), (long) from + limit)));
+            }
+        }
+        Path log = logPath(room);
+        while (true) {
+            List<LogSegments.Segment> sealed = new ArrayList<>(segments.list(room, log));
+            List<String> messages = new ArrayList<>(Math.min(limit, 1024));
+            long next = offset;
+            for (LogSegments.Segment segment : sealed) {
+                if (messages.size() >= limit) break;
+                if (next >= segment.endOffset()) continue;
+                next += segments.read(segment, next, limit - messages.size(), messages);
+            }
+            long activeBase = sealed.isEmpty() ? 0 : sealed.get(sealed.size() - 1).endOffset();
+            if (messages.size() < limit && Files.exists(log)) {
+                try (InputStream in = Files.newInputStream(log)) {
+                    readRecords(in, Math.max(0, next - activeBase), limit - messages.size(), messages::add);
+                }
+            }
+            if (segments.list(room, log).size() == sealed.size()) return messages;
+        }
+    }
+
+    // Messages in the room's log right now.
+    long size(String room) throws IOException {
+        synchronized (lock(room)) {
+            return count(room);
+        }
+    }
+
+    // Passes messages [0, end) to out as they are decoded, a page of a segment at a time, for a
+    // response that is written while it is read. The active file is opened before anything is passed
+    // on and a seal after that does not change what the open file holds, so unlike read() this never
+    // has to start over.
+    void stream(String room, long end, Sink out) throws IOException {
+        Path log = logPath(room);
+        List<LogSegments.Segment> sealed;
+        InputStream active;
+        while (true) {
+            sealed = new ArrayList<>(segments.list(room, log));
+            active = Files.exists(log) ? Files.newInputStream(log) : InputStream.nullInputStream();
+            if (segments.list(room, log).size() == sealed.size()) break;
+            active.close();
+        }
+        try (InputStream in = active) {
+            List<String> page = new ArrayList<>(1024);
+            long next = 0;
+            for (LogSegments.Segment segment : sealed) {
+                while (next < end && next < segment.endOffset()) {
+                    page.clear();
+                    next += segments.read(segment, next, (int) Math.min(1024, end - next), page);
+                    for (String message : page) out.accept(message);
+                }
+            }
+            long activeBase = sealed.isEmpty() ? 0 : sealed.get(sealed.size() - 1).endOffset();
+            if (next < end) {
+                readRecords(in, Math.max(0, next - activeBase), (int) Math.min(Integer.MAX_VALUE, end - next), message -> {
+                    try {
+                        out.accept(message);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Decodes up to limit records after the first `skip`. Splits on '\n' only, like count() and
+    // LogSegments, so every reader numbers records the same way; a trailing line without its '\n'
+    // is a write still in progress and not a record yet. Returns how many were decoded.
+    static int readRecords(InputStream in, long skip, int limit, Consumer<String> out) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long record = 0;
+        int read = 0;
+        for (int n; read < limit && (n = in.read(chunk)) > 0; ) {
+            int start = 0;
+            for (int i = 0; i < n && read < limit; i++) {
+                if (chunk[i] != '\n') continue;
+                if (record++ >= skip) {
+                    line.write(chunk, start, i - start);
+                    out.accept(decode(line.toString(StandardCharsets.UTF_8)));
+                    read++;
+                }
+                line.reset();
+                start = i + 1;
+            }
+            if (record >= skip && read < limit) line.write(chunk, start, n - start);
+        }
+        return read;
+    }
+
+    // The whole room log, sealed segments first, for handing a room to another node.
+    InputStream openLog(String room) throws IOException {
+        return openLog(room, 0);
+    }
+
+    // The room log from byte `from` on. Files wholly before it are not opened and the first one is
+    // opened at the position, so nothing before `from` is read.
+    InputStream openLog(String room, long from) throws IOException {
+        Path log = logPath(room);
+        List<Path> files = new ArrayList<>();
+        for (LogSegments.Segment segment : segments.list(room, log)) files.add(segment.path);
+        if (Files.exists(log)) files.add(log);
+        List<InputStream> parts = new ArrayList<>();
+        for (Path file : files) {
+            long size = Files.size(file);
+            if (from >= size) {
+                from -= size;
+                continue;
+            }
+            parts.add(Channels.newInputStream(Files.newByteChannel(file).position(from)));
+            from = 0;
+        }
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    // Every room with a log on this node, including the default room.
+    List<String> rooms() throws IOException {
+        List<String> rooms = new ArrayList<>();
+        if (Files.exists(defaultLog)) rooms.add(DEFAULT_ROOM);
+        if (!Files.isDirectory(roomsDir)) return rooms;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(roomsDir, "*.txt")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                rooms.add(name.substring(0, name.length() - ".txt".length()));
+            }
+        }
+        return rooms;
+    }
+
+    // Places a transferred log in front of whatever this node has already accepted for the room,
+    // so writes that arrived after ownership moved stay ordered after the history they follow. The
+    // result is cut into segments the way appends would have cut it, and the last part becomes the
+    // active file.
+    void importLog(String room, InputStream in) throws IOException {
+        Path log = logPath(room);
+        Files.createDirectories(log.getParent());
+        try (Splitter parts = new Splitter(log.getParent())) {
+            parts.write(in);
+            synchronized (lock(room)) {
+                changes.readLock().lock();
+                try {
+                    try (InputStream existing = openLog(room)) {
+                        parts.write(existing);
+                    }
+                    parts.finish();
+                    segments.delete(room, log);
+                    long base = 0;
+                    for (int i = 0; i < parts.files.size() - 1; i++) {
+                        Files.move(parts.files.get(i), LogSegments.segmentPath(log, base), StandardCopyOption.ATOMIC_MOVE);
+                        base += parts.records.get(i);
+                    }
+                    Files.move(parts.files.get(parts.files.size() - 1), log,
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    counts.remove(room);
+                    recent.remove(room);
+                } finally {
+                    changes.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    // Cuts a stream of records into temporary files of at most SEGMENT_BYTES, only between records,
+    // like write does for appends. Closing it deletes the files that were not moved elsewhere.
+    private static class Splitter implements Closeable {
+        final Path dir;
+        final List<Path> files = new ArrayList<>();
+        // Records in each file.
+        final List<Long> records = new ArrayList<>();
+        // The start of a record that continues in the next read.
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        private OutputStream out;
+        private long size;
+
+        Splitter(Path dir) {
+            this.dir = dir;
+        }
+
+        void write(InputStream in) throws IOException {
+            byte[] chunk = new byte[64 * 1024];
+            for (int n; (n = in.read(chunk)) > 0; ) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] != '\n') continue;
+                    record(chunk, start, i + 1);
+                    start = i + 1;
+                }
+                partial.write(chunk, start, n - start);
+            }
+        }
+
+        private void record(byte[] chunk, int start, int end) throws IOException {
+            long length = partial.size() + end - start;
+            if (out == null || (size > 0 && size + length > LogSegments.SEGMENT_BYTES)) next();
+            partial.writeTo(out);
+            partial.reset();
+            out.write(chunk, start, end - start);
+            size += length;
+            records.set(records.size() - 1, records.get(records.size() - 1) + 1);
+        }
+
+        private void next() throws IOException {
+            if (out != null) out.close();
+            Path file = Files.createTempFile(dir, "import-", ".tmp");
+            files.add(file);
+            records.add(0L);
+            out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+            size = 0;
+        }
+
+        // A trailing line without its '\n' is kept as it is, at the end of the last file.
+        void finish() throws IOException {
+            if (out == null) next();
+            partial.writeTo(out);
+            partial.reset();
+            out.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) out.close();
+            for (Path file : files) Files.deleteIfExists(file);
+        }
+    }
+
+    void delete(String room) throws IOException {
+        synchronized (lock(room)) {
+            changes.readLock().lock();
+            try {
+                segments.delete(room, logPath(room));
+                Files.deleteIfExists(logPath(room));
+                counts.remove(room);
+                recent.remove(room);
+            } finally {
+                changes.readLock().unlock();
+            }
+        }
+    }
+
+    // Runs `capture` while no log, count or recent buffer is being changed, so the counters and every
+    // room's state it reads are from the same moment. Appends wait for it, so it should be quick.
+    <T> T capture(Capture<T> capture) throws IOException {
+        changes.writeLock().lock();
+        try {
+            return capture.run();
+        } finally {
+            changes.writeLock().unlock();
+        }
+    }
+
+    // Room state for a checkpoint; count, file size and buffer agree because the caller is inside
+    // capture(). Returns null for rooms whose state has not been loaded since startup.
+    Checkpoints.RoomState snapshot(String room) throws IOException {
+        Long count = counts.get(room);
+        if (count == null) return null;
+        Path log = logPath(room);
+        long activeBytes = Files.exists(log) ? Files.size(log) : 0;
+        ArrayDeque<String> buffer = recent.getOrDefault(room, new ArrayDeque<>());
+        return new Checkpoints.RoomState(room, count, activeBytes, new ArrayList<>(buffer),
+                new ArrayList<>(segments.list(room, log)));
+    }
+
+    List<String> loadedRooms() {
+        return new ArrayList<>(counts.keySet());
+    }
+
+    // Total size of each room's log, sealed segments included, from one listing per directory.
+    Map<String, Long> logBytes() throws IOException {
+        Map<String, Long> sizes = new HashMap<>();
+        String defaultName = defaultLog.getFileName().toString();
+        if (Files.isDirectory(defaultLog.getParent())) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(defaultLog.getParent(), "{" + defaultName + "," + defaultName + ".*.seg}")) {
+                for (Path file : files) sizes.merge(DEFAULT_ROOM, Files.size(file), Long::sum);
+            }
+        }
+        if (Files.isDirectory(roomsDir)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(roomsDir, "{*.txt,*.txt.*.seg}")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    String room = name.substring(0, name.indexOf(".txt"));
+                    if (isValidRoom(room)) sizes.merge(room, Files.size(file), Long::sum);
+                }
+            }
+        }
+        return sizes;
+    }
+
+    void restore(String room, long count, List<String> messages) {
+        synchronized (lock(room)) {
+            counts.put(room, count);
+            recent.remove(room);
+            remember(room, messages);
+        }
+    }
+}
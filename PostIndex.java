@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+// In-memory index of posts/<uid>/<epochMillis>_<filename>, one time-sorted timeline per user.
+// Feeds are a lazy k-way merge over the selected timelines, newest first, so a page costs
+// O(limit log k) for k users regardless of how many posts they have.
+public class PostIndex {
+    static final Pattern USER_ID = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+
+    static class Post {
+        final String uid;
+        final long timestamp;
+        final String name;
+
+        Post(String uid, long timestamp, String name) {
+            this.uid = uid;
+            this.timestamp = timestamp;
+            this.name = name;
+        }
+
+        String fileName() {
+            return timestamp + "_" + name;
+        }
+    }
+
+    // Timestamps in ascending order, with the matching file names (without the timestamp prefix).
+    // Appending in order writes past the published size; any other change replaces the arrays, so a
+    // reader holding a snapshot of (timestamps, names, size) never sees them move.
+    static class Timeline {
+        private long[] timestamps = new long[8];
+        private String[] names = new String[8];
+        private int size;
+
+        // Adding a post that is already indexed changes nothing, so a file written over is not listed twice.
+        synchronized void add(long timestamp, String name) {
+            int at = size;
+            while (at > 0 && timestamps[at - 1] > timestamp) at--;
+            for (int i = at - 1; i >= 0 && timestamps[i] == timestamp; i--) {
+                if (names[i].equals(name)) return;
+            }
+            if (at < size || size == timestamps.length) {
+                long[] t = new long[Math.max(8, size == timestamps.length ? size * 2 : timestamps.length)];
+                String[] n = new String[t.length];
+                System.arraycopy(timestamps, 0, t, 0, at);
+                System.arraycopy(names, 0, n, 0, at);
+                System.arraycopy(timestamps, at, t, at + 1, size - at);
+                System.arraycopy(names, at, n, at + 1, size - at);
+                timestamps = t;
+                names = n;
+            }
+            timestamps[at] = timestamp;
+            names[at] = name;
+            size++;
+        }
+
+        synchronized void remove(long timestamp, String name) {
+            for (int i = size - 1; i >= 0 && timestamps[i] >= timestamp; i--) {
+                if (timestamps[i] != timestamp || !names[i].equals(name)) continue;
+                long[] t = new long[timestamps.length];
+                String[] n = new String[names.length];
+                System.arraycopy(timestamps, 0, t, 0, i);
+                System.arraycopy(names, 0, n, 0, i);
+                System.arraycopy(timestamps, i + 1, t, i, size - i - 1);
+                System.arraycopy(names, i + 1, n, i, size - i - 1);
+                timestamps = t;
+                names = n;
+                size--;
+                return;
+            }
+        }
+
+        synchronized Cursor cursor(String uid, long before) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamps[mid] < before) lo = mid + 1;
+                else hi = mid;
+            }
+            return new Cursor(uid, timestamps, names, lo - 1);
+        }
+    }
+
+    // Walks one timeline from newest to oldest.
+    static class Cursor {
+        final String uid;
+        final long[] timestamps;
+        final String[] names;
+        int position;
+
+        Cursor(String uid, long[] timestamps, String[] names, int position) {
+            this.uid = uid;
+            this.timestamps = timestamps;
+            this.names = names;
+            this.position = position;
+        }
+    }
+
+    private final Path postsDir;
+    private final ConcurrentHashMap<String, Timeline> timelines = new ConcurrentHashMap<>();
+    // Bumped after every add or remove, so cached or coalesced feeds can tell they are stale.
+    private final AtomicLong generation = new AtomicLong();
+
+    PostIndex(Path postsDir) {
+        this.postsDir = postsDir;
+    }
+
+    Path postsDir() {
+        return postsDir;
+    }
+
+    // Scans posts/ once at startup; file names without a timestamp prefix are not posts and are skipped.
+    void load() throws IOException {
+        if (!Files.isDirectory(postsDir)) return;
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(postsDir, Files::isDirectory)) {
+            for (Path user : users) {
+                String uid = user.getFileName().toString();
+                if (!USER_ID.matcher(uid).matches()) continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(user)) {
+                    for (Path file : files) {
+                        Post post = parse(uid, file.getFileName().toString());
+                        if (post != null) add(post);
+                    }
+                }
+            }
+        }
+    }
+
+    static Post parse(String uid, String fileName) {
+        int separator = fileName.indexOf('_');
+        if (separator <= 0) return null;
+        try {
+            return new Post(uid, Long.parseLong(fileName.substring(0, separator)), fileName.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    long generation() {
+        return generation.get();
+    }
+
+    void add(Post post) {
+        timelines.computeIfAbsent(post.uid, u -> new Timeline()).add(post.timestamp, post.name);
+        generation.incrementAndGet();
+    }
+
+    void remove(Post post) {
+        Timeline timeline = timelines.get(post.uid);
+        if (timeline != null) timeline.remove(post.timestamp, post.name);
+        generation.incrementAndGet();
+    }
+
+    // Up to limit posts of the given users with a timestamp strictly before `before`, newest first.
+    List<Post> feed(Collection<String> users, long before, int limit) {
+        PriorityQueue<Cursor> heads = new PriorityQueue<>(Math.max(1, users.size()), (a, b) -> {
+            int byTime = Long.compare(b.timestamps[b.position], a.timestamps[a.position]);
+            return byTime != 0 ? byTime : a.uid.compareTo(b.uid);
+        });
+        for (String uid : new LinkedHashSet<>(users)) {
+            Timeline timeline = timelines.get(uid);
+            if (timeline == null) continue;
+            Cursor cursor = timeline.cursor(uid, before);
+            if (cursor.position >= 0) heads.add(cursor);
+        }
+
+        List<Post> page = new ArrayList<>(Math.min(limit, 256));
+        while (page.size() < limit && !heads.isEmpty()) {
+            Cursor cursor = heads.poll();
+            page.add(new Post(cursor.uid, cursor.timestamps[cursor.position], cursor.names[cursor.position]));
+            if (--cursor.position >= 0) heads.add(cursor);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import spark.Request;
+import spark.Response;
+
+// Routes rooms to the node that owns them and moves room logs when the node list changes.
+// Nodes authenticate to each other with the shared CLUSTER_SECRET; requests without it are client
+// requests, whatever other cluster headers they carry.
+//
+// A node list change is a handoff in three phases, driven by the node the operator called, see
+// broadcastNodes: every node first switches to the new ring (prepare), then every node streams out the
+// rooms it no longer owns (transfer), then every node is told the handoff is over (complete). Between
+// prepare and complete a room that is moving is refused with NotOwnerException by both sides: the old
+// owner no longer owns it, and the new owner does not serve it before its log has been imported, so
+// offsets it hands out always count from the room's full history.
+public class ShardCluster {
+    static final String FORWARDED_HEADER = "X-Shard-Forwarded";
+    static final String SECRET_HEADER = "X-Cluster-Secret";
+    static final String RING_HEADER = "X-Shard-Ring";
+    // Sent with a prepare: the node list before the change, as the node running the handoff knows it.
+    // A node that is joining was started with the new list already, so it cannot tell which rooms move.
+    static final String PREVIOUS_HEADER = "X-Shard-Previous";
+    static final Duration FORWARD_TIMEOUT = Duration.ofSeconds(30);
+    // Not copied to a forwarded request: hop-by-hop headers, the ones HttpClient sets itself, and the
+    // cluster headers, which the forwarding node sets for itself.
+    private static final Set<String> UNFORWARDED = Set.of(
+            "connection", "keep-alive", "proxy-authorization", "proxy-connection", "te", "trailer",
+            "transfer-encoding", "upgrade", "host", "content-length", "expect",
+            FORWARDED_HEADER.toLowerCase(Locale.ROOT), SECRET_HEADER.toLowerCase(Locale.ROOT),
+            RING_HEADER.toLowerCase(Locale.ROOT), PREVIOUS_HEADER.toLowerCase(Locale.ROOT));
+
+    // Thrown when a request reaches a node that does not own its room under the ring it was routed
+    // with, which only happens while a rebalance is in progress. The client should retry.
+    static class NotOwnerException extends IOException {
+        NotOwnerException(String room) {
+            super("room '" + room + "' is not owned by this node");
+        }
+    }
+
+    interface Write<T> {
+        T run() throws IOException;
+    }
+
+    final String self;
+    private volatile ShardRing ring;
+    // The ring before the handoff in progress, or null when there is none.
+    private volatile ShardRing previous;
+    // Rooms imported since the handoff began; they are served before it completes.
+    private final Set<String> imported = ConcurrentHashMap.newKeySet();
+    private final MessageStore store;
+    // Run after the ring changed, e.g. to move WebSocket subscribers of rooms this node gave away.
+    final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    // Null in single-node mode, where there are no cluster routes to protect.
+    private final String secret;
+    // One client for the whole process; it keeps HTTP/1.1 connections to the other nodes alive and pooled.
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    ShardCluster(String self, ShardRing ring, MessageStore store, String secret) {
+        this.self = self;
+        this.ring = ring;
+        this.store = store;
+        this.secret = secret;
+    }
+
+    // Single-node mode when CLUSTER_NODES is unset: every room is local.
+    static ShardCluster fromEnv(String self, MessageStore store) {
+        String nodes = System.getenv("CLUSTER_NODES");
+        if (nodes == null || nodes.isBlank()) return new ShardCluster(self, new ShardRing(List.of(self)), store, null);
+        String secret = System.getenv("CLUSTER_SECRET");
+        if (secret == null || secret.isBlank()) throw new IllegalStateException("CLUSTER_SECRET must be set when CLUSTER_NODES is");
+        return new ShardCluster(self, ShardRing.parse(nodes), store, secret);
+    }
+
+    boolean isClustered() {
+        return secret != null;
+    }
+
+    // True if the request carries the cluster secret, i.e. comes from another node or an operator.
+    boolean isAuthorized(Request req) {
+        String presented = req.headers(SECRET_HEADER);
+        return secret != null && presented != null && MessageDigest.isEqual(
+                presented.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    boolean isForwarded(Request req) {
+        return req.headers(FORWARDED_HEADER) != null && isAuthorized(req);
+    }
+
+    ShardRing ring() {
+        return ring;
+    }
+
+    String owner(String room) {
+        return ring.owner(room);
+    }
+
+    // True while this node owns the room under the new ring but has not received its log yet.
+    boolean isIncoming(String room) {
+        ShardRing before = previous;
+        return before != null && !self.equals(before.owner(room)) && self.equals(ring.owner(room))
+                && !imported.contains(room);
+    }
+
+    // A request another node already forwarded is never forwarded again, so two nodes mid-rebalance
+    // cannot bounce it between them. It is only served if the sender routed it with the same ring and
+    // that ring makes this node the owner; otherwise it is refused with NotOwnerException. So is any
+    // request for a room whose log is still on its way here.
+    boolean isLocal(Request req, String room) throws NotOwnerException {
+        ShardRing current = ring;
+        boolean owner = self.equals(current.owner(room));
+        if (owner && isIncoming(room)) throw new NotOwnerException(room);
+        if (!isForwarded(req)) return owner;
+        if (owner && current.version().equals(req.headers(RING_HEADER))) return true;
+        throw new NotOwnerException(room);
+    }
+
+    // Runs a write to a local room under the room lock, after checking the room is still ours and its
+    // log is here. The ring changes in prepare, before transfer takes the lock to hand a room off, so a
+    // write either lands before the handoff and moves with the log, or sees the new ring and is refused.
+    <T> T write(String room, Write<T> write) throws IOException {
+        synchronized (store.lock(room)) {
+            if (!self.equals(owner(room)) || isIncoming(room)) throw new NotOwnerException(room);
+            return write.run();
+        }
+    }
+
+    Object forward(Request req, Response res, String node) throws IOException, InterruptedException {
+        return forward(req, res, node, "GET".equals(req.requestMethod()) ? null : req.bodyAsBytes());
+    }
+
+    // For routes that already consumed the request body themselves. The client's headers go along,
+    // so the owner sees the same Idempotency-Key, Content-Type and Accept as a direct request.
+    Object forward(Request req, Response res, String node, byte[] body) throws IOException, InterruptedException {
+        String query = req.queryString() == null ? "" : "?" + req.queryString();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create("http://" + node + req.pathInfo() + query));
+        for (String name : req.headers()) {
+            if (UNFORWARDED.contains(name.toLowerCase(Locale.ROOT))) continue;
+            for (String value : Collections.list(req.raw().getHeaders(name))) builder.header(name, value);
+        }
+        builder.header(FORWARDED_HEADER, self)
+                .header(SECRET_HEADER, secret)
+                .header(RING_HEADER, ring.version())
+                .timeout(FORWARD_TIMEOUT)
+                .method(req.requestMethod(), body == null
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofByteArray(body));
+
+        HttpResponse<byte[]> upstream = client.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+        res.status(upstream.statusCode());
+        upstream.headers().firstValue("Content-Type").ifPresent(res::type);
+        return upstream.body();
+    }
+
+    // Phase one: route with the new ring from now on. A handoff that failed part way is still open, so
+    // its old ring is kept: the rooms it was moving stay refused until a later handoff completes.
+    synchronized void prepare(List<String> nodes, ShardRing before) {
+        if (previous == null) {
+            previous = before;
+            imported.clear();
+        }
+        ring = new ShardRing(nodes);
+        for (Runnable listener : listeners) listener.run();
+    }
+
+    // Called once a room's log has been imported from its previous owner.
+    void imported(String room) {
+        if (previous != null) imported.add(room);
+    }
+
+    // Phase three: every node has transferred its rooms, so rooms that were not imported had no log.
+    synchronized void complete() {
+        previous = null;
+        imported.clear();
+    }
+
+    // Phase two: streams each room this node no longer owns to its new owner and removes it locally.
+    // The room lock is held for the transfer, so no local append can land between the copy and the delete.
+    synchronized Map<String, String> transfer() throws IOException, InterruptedException {
+        ShardRing next = ring;
+        Map<String, String> moved = new LinkedHashMap<>();
+        for (String room : store.rooms()) {
+            String owner = next.owner(room);
+            if (self.equals(owner)) continue;
+            synchronized (store.lock(room)) {
+                HttpRequest transfer = HttpRequest.newBuilder(URI.create("http://" + owner + "/cluster/rooms/import?room=" + room))
+                        .header(FORWARDED_HEADER, self)
+                        .header(SECRET_HEADER, secret)
+                        .POST(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                            try {
+                                return store.openLog(room);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }))
+                        .build();
+                HttpResponse<Void> response = client.send(transfer, HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() / 100 != 2) {
+                    throw new IOException("Transfer of room '" + room + "' to " + owner + " failed: HTTP " + response.statusCode());
+                }
+                store.delete(room);
+            }
+            moved.put(room, owner);
+        }
+        return moved;
+    }
+
+    // Runs the handoff on every node, old and new, this one included: each phase reaches every node
+    // before the next one starts. Requests carry the forwarded header so the receivers run just the
+    // phase they are sent. Stops at the first node that fails, so the operator sees it and can retry
+    // with the same node list; until then the moving rooms keep being refused. Has to run on a node
+    // that is already a member, since its ring is the one the handoff starts from.
+    Map<String, String> rebalance(List<String> nodes, String body) throws IOException, InterruptedException {
+        ShardRing before = previous != null ? previous : ring;
+        // Joining nodes first: they already route with the new ring, so they must know which rooms are
+        // still incoming before any member switches and starts forwarding those rooms to them.
+        Set<String> targets = new LinkedHashSet<>(nodes);
+        targets.removeAll(before.nodes());
+        targets.addAll(before.nodes());
+        targets.addAll(nodes);
+        targets.remove(self);
+        for (String node : targets) phase(node, "prepare", body, before);
+        prepare(nodes, before);
+        for (String node : targets) phase(node, "transfer", body, before);
+        Map<String, String> moved = transfer();
+        for (String node : targets) phase(node, "complete", body, before);
+        complete();
+        return moved;
+    }
+
+    private void phase(String node, String phase, String body, ShardRing before) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + node + "/cluster/nodes?phase=" + phase))
+                .header(FORWARDED_HEADER, self)
+                .header(SECRET_HEADER, secret)
+                .header(PREVIOUS_HEADER, String.join(",", before.nodes()))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Rebalance " + phase + " on " + node + " failed: HTTP " + response.statusCode());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Consistent-hash ring over node addresses ("host:port"). Each node is placed at VIRTUAL_NODES
+// points so adding or removing one node only moves about 1/N of the rooms.
+public class ShardRing {
+    static final int VIRTUAL_NODES = 160;
+
+    private final List<String> nodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    // Identifies the node set regardless of the order it was listed in; nodes compare it to tell
+    // whether they route with the same ring.
+    private final String version;
+
+    ShardRing(Collection<String> nodes) {
+        this.nodes = List.copyOf(new LinkedHashSet<>(nodes));
+        this.version = Long.toHexString(hash(String.join(",", new TreeSet<>(this.nodes))));
+        for (String node : this.nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    static ShardRing parse(String csv) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : csv.split(",")) {
+            if (!node.isBlank()) nodes.add(node.trim());
+        }
+        return new ShardRing(nodes);
+    }
+
+    List<String> nodes() {
+        return nodes;
+    }
+
+    String version() {
+        return version;
+    }
+
+    String owner(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    // 64-bit FNV-1a followed by the murmur3 finalizer, which spreads the short "node#i" keys evenly.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
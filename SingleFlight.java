@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Coalesces concurrent identical reads: the first caller for a key computes the serialized response,
+// callers that arrive while it is running wait for it and get the same bytes. Nothing is cached once
+// the computation finishes, so callers should put whatever makes a result stale (such as the room's
+// message count) into the key.
+public class SingleFlight {
+    interface Computation {
+        byte[] compute() throws IOException;
+    }
+
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong executions = new AtomicLong();
+
+    byte[] run(String key, Computation computation) throws IOException {
+        calls.incrementAndGet();
+        CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) return await(running);
+
+        executions.incrementAndGet();
+        try {
+            byte[] result = computation.compute();
+            mine.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    // Share of calls answered by another caller's computation.
+    double coalescingRatio() {
+        long total = calls.get();
+        return total == 0 ? 0 : 1 - (double) executions.get() / total;
+    }
+
+    static byte[] await(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.HdrHistogram.Histogram;
+
+// Compares saving --batch-size messages as one POST /messages:batch with saving them as single
+// POST /messages requests, sent by --concurrency clients at a time. Each round uses a fresh room; the
+// first --warmup rounds of each kind are not counted.
+//
+//   java BatchBenchmark [--target http://localhost:8080 | --spawn <classpath>] [--batch-size 10000]
+//                       [--rounds 20] [--warmup 3] [--message-bytes 100] [--concurrency 16]
+//
+// Needs Java 21 and HdrHistogram, like LoadGenerator.
+public class BatchBenchmark {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        int batchSize = Integer.parseInt(options.getOrDefault("batch-size", "10000"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "20"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+        int messageBytes = Integer.parseInt(options.getOrDefault("message-bytes", "100"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+
+        Process server = null;
+        String address = options.containsKey("spawn") ? "localhost:" + LoadGenerator.freePort() : null;
+        String target = address == null ? options.getOrDefault("target", "http://localhost:8080") : "http://" + address;
+        if (address != null) server = LoadGenerator.spawn(options.get("spawn"), address, List.of());
+        try {
+            LoadGenerator http = new LoadGenerator(List.of(target), 1, 0, List.of());
+            if (server != null) http.awaitReady();
+            HttpClient client = http.client;
+            String runId = Long.toString(System.currentTimeMillis(), 36);
+            String message = "x".repeat(messageBytes);
+
+            StringBuilder body = new StringBuilder(batchSize * (messageBytes + 3) + 2).append('[');
+            for (int i = 0; i < batchSize; i++) body.append(i == 0 ? "\"" : ",\"").append(message).append('"');
+            byte[] batch = body.append(']').toString().getBytes(StandardCharsets.UTF_8);
+
+            Histogram batches = new Histogram(TimeUnit.MINUTES.toMicros(5), 3);
+            long batchNanos = 0;
+            for (int round = 0; round < warmup + rounds; round++) {
+                URI uri = URI.create(target + "/messages:batch?room=batch-" + runId + "-" + round);
+                long start = System.nanoTime();
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(batch)).build(), HttpResponse.BodyHandlers.ofString());
+                long elapsed = System.nanoTime() - start;
+                if (response.statusCode() != 200) throw new IllegalStateException("batch failed: " + response.body());
+                if (round < warmup) continue;
+                batches.recordValue(elapsed / 1000);
+                batchNanos += elapsed;
+            }
+
+            Histogram singles = new Histogram(TimeUnit.MINUTES.toMicros(5), 3);
+            long singleNanos = 0;
+            AtomicLong errors = new AtomicLong();
+            String json = "{\"room\":\"%s\",\"message\":\"" + message + "\"}";
+            for (int round = 0; round < warmup + rounds; round++) {
+                String room = "single-" + runId + "-" + round;
+                boolean counted = round >= warmup;
+                long start = System.nanoTime();
+                try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                    Semaphore permits = new Semaphore(concurrency);
+                    for (int i = 0; i < batchSize; i++) {
+                        permits.acquire();
+                        executor.submit(() -> {
+                            long sent = System.nanoTime();
+                            try {
+                                int status = client.send(HttpRequest.newBuilder(URI.create(target + "/messages"))
+                                        .header("Content-Type", "application/json")
+                                        .POST(HttpRequest.BodyPublishers.ofString(String.format(json, room))).build(),
+                                        HttpResponse.BodyHandlers.discarding()).statusCode();
+                                if (status != 200) errors.incrementAndGet();
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            } finally {
+                                permits.release();
+                            }
+                            if (counted) {
+                                synchronized (singles) {
+                                    singles.recordValue((System.nanoTime() - sent) / 1000);
+                                }
+                            }
+                        });
+                    }
+                }
+                if (counted) singleNanos += System.nanoTime() - start;
+            }
+
+            System.out.printf("%d rounds of %d messages of %d bytes (%.1f MB per batch body)%n",
+                    rounds, batchSize, messageBytes, batch.length / 1048576.0);
+            System.out.printf("%-8s %12s %10s %10s %10s%n", "", "messages/s", "p50 ms", "p99 ms", "max ms");
+            System.out.printf("%-8s %12.0f %10.2f %10.2f %10.2f  (per batch request)%n", "batch",
+                    (double) rounds * batchSize / (batchNanos / 1e9), batches.getValueAtPercentile(50) / 1000.0,
+                    batches.getValueAtPercentile(99) / 1000.0, batches.getMaxValue() / 1000.0);
+            System.out.printf("%-8s %12.0f %10.2f %10.2f %10.2f  (per request, %d errors)%n", "single",
+                    (double) rounds * batchSize / (singleNanos / 1e9), singles.getValueAtPercentile(50) / 1000.0,
+                    singles.getValueAtPercentile(99) / 1000.0, singles.getMaxValue() / 1000.0, errors.get());
+            System.out.println("/metrics after the run: " + http.metrics(target));
+        } finally {
+            if (server != null) server.destroy();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// MessageCodec against the Gson path it replaced, for the two message routes:
+//   parse  a POST /messages body: readBody + parseMessage, against gson.fromJson(body String, Map.class)
+//   write  a GET /messages page of --page messages: writeMessages to the stream, against
+//          gson.toJson(list).getBytes() written to the stream
+// Each case runs --warmup operations, then --operations timed ones on this thread, and reports
+// throughput and bytes allocated per operation (ThreadMXBean.getThreadAllocatedBytes, which counts
+// the same TLAB allocation JMH's -prof gc reports as gc.alloc.rate.norm).
+//
+//   java CodecBenchmark [--operations 2000000] [--warmup 500000] [--page 100] [--message-bytes 100]
+//
+// Runs in-process, so the server classes and Gson have to be on the classpath.
+public class CodecBenchmark {
+    static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    static final OutputStream DISCARD = OutputStream.nullOutputStream();
+    static final Gson GSON = new Gson();
+    // Keeps results reachable so the JIT cannot drop the work.
+    static long sink;
+
+    interface Operation {
+        void run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        long operations = Long.parseLong(options.getOrDefault("operations", "2000000"));
+        long warmup = Long.parseLong(options.getOrDefault("warmup", "500000"));
+        int pageSize = Integer.parseInt(options.getOrDefault("page", "100"));
+        int messageBytes = Integer.parseInt(options.getOrDefault("message-bytes", "100"));
+
+        String message = "x".repeat(messageBytes);
+        byte[] body = ("{\"room\":\"lobby\",\"message\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+        List<String> page = new ArrayList<>();
+        for (int i = 0; i < pageSize; i++) page.add(message + i);
+        MessageCodec codec = MessageCodec.get();
+
+        System.out.printf("%d operations after %d warmup, %d-byte messages, pages of %d%n", operations, warmup, messageBytes, pageSize);
+        System.out.printf("%-14s %14s %14s%n", "", "ops/s", "bytes/op");
+        run("parse codec", warmup, operations, () -> {
+            codec.readBody(new ByteArrayInputStream(body));
+            if (!codec.parseMessage()) throw new IllegalStateException("not parsed");
+            sink += codec.message.length();
+        });
+        run("parse gson", warmup, operations, () -> {
+            Map parsed = GSON.fromJson(new String(body, StandardCharsets.UTF_8), Map.class);
+            sink += ((String) parsed.get("message")).length();
+        });
+        long pageOperations = Math.max(1, operations / pageSize);
+        long pageWarmup = Math.max(1, warmup / pageSize);
+        run("write codec", pageWarmup, pageOperations, () -> codec.writeMessages(DISCARD, page));
+        run("write gson", pageWarmup, pageOperations, () -> {
+            byte[] json = GSON.toJson(page).getBytes(StandardCharsets.UTF_8);
+            DISCARD.write(json);
+            sink += json.length;
+        });
+        if (sink == 42) System.out.println();
+    }
+
+    static void run(String name, long warmup, long operations, Operation operation) throws IOException {
+        for (long i = 0; i < warmup; i++) operation.run();
+        long thread = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (long i = 0; i < operations; i++) operation.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("%-14s %14.0f %14.1f%n", name, operations / (elapsed / 1e9), (double) allocated / operations);
+    }
+}
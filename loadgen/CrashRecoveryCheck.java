@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Kills a server with SIGKILL over and over while clients write to it, and checks after every restart
+// that it recovered from its checkpoint and the logs:
+//   - every acknowledged message is at the offset it was acknowledged with,
+//   - a page read from the recent buffer matches the same page read from the files,
+//   - messagesWritten and bytesWritten equal the records and bytes in the logs (the data directory
+//     starts empty, so everything in it was written by this server).
+// Every other kill waits for checkpoint.dat.tmp to appear, so the process dies in the middle of writing
+// a checkpoint; whether it did is counted by the temp file still being there. Every third restart
+// also finds a torn checkpoint.dat.tmp with garbage in it.
+//
+//   java CrashRecoveryCheck --spawn <classpath> [--kills 20] [--rooms 40] [--writers 8]
+//
+// Checkpoints are taken every second (CHECKPOINT_SECONDS=1). Exits with status 1 on the first mismatch.
+public class CrashRecoveryCheck {
+    static final Pattern STRING = Pattern.compile("\"([^\"]*)\"");
+
+    final HttpClient client = HttpClient.newHttpClient();
+    final int rooms;
+    // Per room: offset -> message, for every acknowledged write.
+    final List<ConcurrentHashMap<Long, String>> acknowledged = new ArrayList<>();
+    String target;
+
+    CrashRecoveryCheck(int rooms) {
+        this.rooms = rooms;
+        for (int i = 0; i < rooms; i++) acknowledged.add(new ConcurrentHashMap<>());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        int kills = Integer.parseInt(options.getOrDefault("kills", "20"));
+        int writers = Integer.parseInt(options.getOrDefault("writers", "8"));
+        CrashRecoveryCheck check = new CrashRecoveryCheck(Integer.parseInt(options.getOrDefault("rooms", "40")));
+        Path dataDir = Files.createTempDirectory("crash-check");
+        System.out.println("Server data and log in " + dataDir);
+        Path tmp = dataDir.resolve("checkpoint.dat.tmp");
+
+        Random random = new Random(1);
+        int midCheckpoint = 0;
+        for (int cycle = 0; cycle <= kills; cycle++) {
+            if (cycle > 0 && cycle % 3 == 0) {
+                byte[] garbage = new byte[1 + random.nextInt(4096)];
+                random.nextBytes(garbage);
+                Files.write(tmp, garbage);
+            }
+            String address = "localhost:" + LoadGenerator.freePort();
+            check.target = "http://" + address;
+            long start = System.nanoTime();
+            Process server = LoadGenerator.spawn(options.get("spawn"), address, List.of(), dataDir, Map.of("CHECKPOINT_SECONDS", "1"));
+            try {
+                new LoadGenerator(List.of(check.target), 1, 0, List.of()).awaitReady();
+                long ready = (System.nanoTime() - start) / 1_000_000;
+                String verdict = check.verify(dataDir);
+                System.out.printf("restart %d: up in %d ms, %s%n", cycle, ready, verdict);
+                if (verdict.startsWith("FAILED")) System.exit(1);
+                if (cycle == kills) break;
+
+                boolean waitForCheckpoint = cycle % 2 == 1;
+                try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                    AtomicLong stop = new AtomicLong();
+                    for (int w = 0; w < writers; w++) {
+                        int writer = w;
+                        int attempt = cycle;
+                        executor.submit(() -> check.write(attempt, writer, stop));
+                    }
+                    Thread.sleep(500 + random.nextInt(2500));
+                    if (waitForCheckpoint) {
+                        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                        while (!Files.exists(tmp) && System.nanoTime() < deadline) Thread.onSpinWait();
+                    }
+                    server.destroyForcibly().waitFor();
+                    stop.set(1);
+                }
+                if (Files.exists(tmp)) midCheckpoint++;
+            } finally {
+                server.destroyForcibly().waitFor();
+            }
+        }
+        long messages = check.acknowledged.stream().mapToLong(Map::size).sum();
+        System.out.printf("ok: %d kills, %d of them mid-checkpoint, %d acknowledged messages all recovered%n",
+                kills, midCheckpoint, messages);
+    }
+
+    void write(int cycle, int writer, AtomicLong stop) {
+        Random random = new Random(cycle * 1000L + writer);
+        for (int i = 0; stop.get() == 0; i++) {
+            int room = random.nextInt(rooms);
+            String message = "c" + cycle + "-w" + writer + "-" + i;
+            try {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(target + "/messages"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"room\":\"crash-" + room + "\",\"message\":\"" + message + "\"}"))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200) continue;
+                acknowledged.get(room).put(LoadGenerator.number(response.body(), "offset"), message);
+            } catch (IOException | InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    String verify(Path dataDir) throws IOException, InterruptedException {
+        long records = 0;
+        for (int room = 0; room < rooms; room++) {
+            List<String> all = messages("/messages?room=crash-" + room);
+            for (Map.Entry<Long, String> ack : acknowledged.get(room).entrySet()) {
+                long offset = ack.getKey();
+                if (offset >= all.size() || !all.get((int) offset).equals(ack.getValue())) {
+                    return "FAILED: crash-" + room + " offset " + offset + " should be " + ack.getValue()
+                            + " but is " + (offset < all.size() ? all.get((int) offset) : "missing");
+                }
+            }
+            if (all.size() >= 5) {
+                List<String> tail = messages("/messages?room=crash-" + room + "&offset=" + (all.size() - 5) + "&limit=5");
+                if (!tail.equals(all.subList(all.size() - 5, all.size()))) {
+                    return "FAILED: crash-" + room + " recent buffer " + tail + " differs from the log";
+                }
+            }
+            records += all.size();
+        }
+
+        long bytes = 0;
+        Path roomsDir = dataDir.resolve("rooms");
+        if (Files.isDirectory(roomsDir)) {
+            try (Stream<Path> files = Files.list(roomsDir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".txt") || name.endsWith(".seg")) bytes += completeRecordBytes(file);
+                }
+            }
+        }
+        String metrics = client.send(HttpRequest.newBuilder(URI.create(target + "/metrics")).build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        long messagesWritten = LoadGenerator.number(metrics, "messagesWritten");
+        long bytesWritten = LoadGenerator.number(metrics, "bytesWritten");
+        if (messagesWritten != records || bytesWritten != bytes) {
+            return "FAILED: counters say " + messagesWritten + " messages, " + bytesWritten + " bytes; the logs hold "
+                    + records + " messages, " + bytes + " bytes";
+        }
+        return records + " messages in the logs, counters match";
+    }
+
+    List<String> messages(String pathAndQuery) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(target + pathAndQuery)).build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) throw new IOException(pathAndQuery + " answered " + response.statusCode());
+        List<String> messages = new ArrayList<>();
+        for (Matcher matcher = STRING.matcher(response.body()); matcher.find(); ) messages.add(matcher.group(1));
+        return messages;
+    }
+
+    // Bytes up to and including the last '\n'.
+    static long completeRecordBytes(Path file) throws IOException {
+        long complete = 0;
+        long position = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] chunk = new byte[64 * 1024];
+            for (int n; (n = in.read(chunk)) > 0; position += n) {
+                for (int i = n - 1; i >= 0; i--) {
+                    if (chunk[i] == '\n') {
+                        complete = position + i + 1;
+                        break;
+                    }
+                }
+            }
+        }
+        return complete;
+    }
+}
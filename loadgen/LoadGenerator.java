@@ -0,0 +1,432 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+// Open-loop load generator for MessageServer. Requests are scheduled at a fixed rate and each one runs
+// on its own virtual thread, so a slow response never delays the next send. Latency is measured from
+// the time a request was scheduled to go out, not from when it actually did, which keeps coordinated
+// omission out of the percentiles.
+//
+// The default mix follows production: chat posts and history reads, plus the file-manager traffic of
+// Html.java (listing, upload, move/copy and delete under posts/, chatImages/ and videos/).
+//
+//   java LoadGenerator [--target http://localhost:8080[,...] | --spawn <classpath> [--nodes 1]] [--rate 500]
+//                      [--duration 60] [--rooms 16] [--upload-bytes 65536] [--seed 1]
+//                      [--mix post=45,history=35,list=6,upload=6,move=3,copy=2,delete=3]
+//                      [--slow-clients 0] [--slow-bytes 4194304] [--slow-rate 262144]
+//
+// --slow-clients adds that many clients that, for the whole run, upload a --slow-bytes file and download
+// it again at --slow-rate bytes per second each, like phones on a bad network. The server's /metrics is
+// sampled every second for the peak thread count and used heap, and printed once more after the run
+// for the final counters such as readCoalescingRatio and duplicateWritesSuppressed.
+//
+// --spawn starts `java -cp <classpath> MessageServer` on a free port with a temporary DATA_DIR and
+// ENABLE_FILE_WRITES=true, and stops it when the run is over. With --nodes N it starts N servers as
+// one cluster. Requests go to the targets round-robin, the way a load balancer in front of the
+// cluster would send them. Needs Java 21, and HdrHistogram from loadgen/pom.xml on the classpath;
+// the server itself does not depend on it.
+public class LoadGenerator {
+    static final String DEFAULT_MIX = "post=45,history=35,list=6,upload=6,move=3,copy=2,delete=3";
+    static final Set<String> OPERATIONS = Set.of("post", "history", "list", "upload", "move", "copy", "delete");
+    static final List<String> ROOTS = List.of("posts", "chatImages", "videos");
+    static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    final List<String> targets;
+    final AtomicLong nextTarget = new AtomicLong();
+    final int rooms;
+    final byte[] upload;
+    final String runId = Long.toString(System.currentTimeMillis(), 36);
+    final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    final Map<String, ConcurrentHistogram> latencies = new TreeMap<>();
+    final Map<String, AtomicLong> errors = new TreeMap<>();
+    final AtomicLong[] roomCounts;
+    // Files this run uploaded and that still exist, for move/copy/delete to work on.
+    final ConcurrentLinkedDeque<String> uploaded = new ConcurrentLinkedDeque<>();
+    final AtomicLong fileIds = new AtomicLong();
+    // Slow clients get their own client, so their throttled streams do not share a selector thread and
+    // connection pool with the scheduled mix.
+    final HttpClient slowClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    final ConcurrentHistogram slowUploads = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    final ConcurrentHistogram slowDownloads = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    final AtomicLong slowUploadErrors = new AtomicLong();
+    final AtomicLong slowDownloadErrors = new AtomicLong();
+    final AtomicLong peakThreads = new AtomicLong();
+    final AtomicLong peakHeap = new AtomicLong();
+
+    // A request and what to record once it succeeds.
+    static class Call {
+        final HttpRequest request;
+        final Runnable onSuccess;
+
+        Call(HttpRequest request, Runnable onSuccess) {
+            this.request = request;
+            this.onSuccess = onSuccess;
+        }
+
+        Call(HttpRequest request) {
+            this(request, () -> { });
+        }
+    }
+
+    LoadGenerator(List<String> targets, int rooms, int uploadBytes, Collection<String> ops) {
+        this.targets = targets;
+        this.rooms = rooms;
+        this.upload = new byte[uploadBytes];
+        new Random(0).nextBytes(upload);
+        this.roomCounts = new AtomicLong[rooms];
+        for (int i = 0; i < rooms; i++) roomCounts[i] = new AtomicLong();
+        for (String op : ops) {
+            latencies.put(op, new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3));
+            errors.put(op, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        int rate = Integer.parseInt(options.getOrDefault("rate", "500"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+        LinkedHashMap<String, Integer> mix = parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+
+        List<Process> servers = new ArrayList<>();
+        List<String> targets = List.of(options.getOrDefault("target", "http://localhost:8080").split(","));
+        if (options.containsKey("spawn")) {
+            int nodes = Integer.parseInt(options.getOrDefault("nodes", "1"));
+            List<String> addresses = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) addresses.add("localhost:" + freePort());
+            for (String address : addresses) servers.add(spawn(options.get("spawn"), address, nodes > 1 ? addresses : List.of()));
+            targets = new ArrayList<>();
+            for (String address : addresses) targets.add("http://" + address);
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(targets,
+                    Integer.parseInt(options.getOrDefault("rooms", "16")),
+                    Integer.parseInt(options.getOrDefault("upload-bytes", "65536")),
+                    mix.keySet());
+            if (!servers.isEmpty()) generator.awaitReady();
+            int slowClients = Integer.parseInt(options.getOrDefault("slow-clients", "0"));
+            byte[] slow = new byte[Integer.parseInt(options.getOrDefault("slow-bytes", "4194304"))];
+            new Random(1).nextBytes(slow);
+            int slowRate = Integer.parseInt(options.getOrDefault("slow-rate", "262144"));
+            long started = System.nanoTime();
+            long deadline = started + TimeUnit.SECONDS.toNanos(duration);
+            long elapsed;
+            try (ExecutorService background = Executors.newVirtualThreadPerTaskExecutor()) {
+                background.submit(() -> generator.sample(deadline));
+                for (int i = 0; i < slowClients; i++) {
+                    int id = i;
+                    background.submit(() -> generator.slowClient(id, slow, slowRate, deadline));
+                }
+                elapsed = generator.run(mix, rate, duration, Long.parseLong(options.getOrDefault("seed", "1")));
+            }
+            generator.report(elapsed);
+            // Slow clients finish the transfer they are in, so their run ends later than the mix's.
+            if (slowClients > 0) generator.reportSlow(System.nanoTime() - started);
+            generator.reportServer();
+        } finally {
+            for (Process server : servers) server.destroy();
+        }
+    }
+
+    static LinkedHashMap<String, Integer> parseMix(String spec) {
+        LinkedHashMap<String, Integer> mix = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            if (!OPERATIONS.contains(parts[0].trim())) throw new IllegalArgumentException("unknown operation " + parts[0]);
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight > 0) mix.put(parts[0].trim(), weight);
+        }
+        return mix;
+    }
+
+    // Returns the wall time of the run in nanoseconds, including draining in-flight requests.
+    long run(Map<String, Integer> mix, int rate, int durationSeconds, long seed) throws InterruptedException {
+        String[] ops = mix.keySet().toArray(new String[0]);
+        int[] cumulative = new int[ops.length];
+        int total = 0;
+        for (int i = 0; i < ops.length; i++) cumulative[i] = total += mix.get(ops[i]);
+
+        Random random = new Random(seed);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long requests = (long) rate * durationSeconds;
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; i < requests; i++) {
+                long intended = start + i * interval;
+                for (long wait; (wait = intended - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+                int pick = random.nextInt(total);
+                int op = 0;
+                while (cumulative[op] <= pick) op++;
+                String name = ops[op];
+                int room = random.nextInt(rooms);
+                executor.submit(() -> execute(name, room, intended));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    void execute(String op, int room, long intended) {
+        try {
+            Call call = call(op, room);
+            HttpResponse<byte[]> response = client.send(call.request, HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() / 100 == 2) call.onSuccess.run();
+            else errors.get(op).incrementAndGet();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            errors.get(op).incrementAndGet();
+        }
+        latencies.get(op).recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (System.nanoTime() - intended) / 1000));
+    }
+
+    Call call(String op, int room) {
+        String roomName = "load-" + room;
+        switch (op) {
+            case "post":
+                roomCounts[room].incrementAndGet();
+                return new Call(HttpRequest.newBuilder(uri("/messages"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(
+                                "{\"room\":\"" + roomName + "\",\"message\":\"load " + runId + " " + System.nanoTime() + "\"}"))
+                        .build());
+            case "history":
+                long offset = Math.max(0, roomCounts[room].get() - 50);
+                return new Call(HttpRequest.newBuilder(uri("/messages?room=" + roomName + "&offset=" + offset + "&limit=50")).GET().build());
+            case "list":
+                return new Call(HttpRequest.newBuilder(uri("/files?path=" + root(room))).GET().build());
+            case "upload": {
+                String path = folder(room) + "/" + fileIds.incrementAndGet() + ".bin";
+                return new Call(HttpRequest.newBuilder(uri("/files/content?path=" + path))
+                        .PUT(HttpRequest.BodyPublishers.ofByteArray(upload))
+                        .build(), () -> uploaded.addLast(path));
+            }
+            case "move":
+            case "copy":
+            case "delete": {
+                // Each file is claimed by one operation at a time and handed back only once that succeeded.
+                String path = uploaded.pollFirst();
+                // Nothing of ours to touch yet; upload instead so the run keeps its rate.
+                if (path == null) return call("upload", room);
+                if ("delete".equals(op)) {
+                    return new Call(HttpRequest.newBuilder(uri("/files/content?path=" + path)).DELETE().build());
+                }
+                boolean copy = "copy".equals(op);
+                String to = folder(room) + "/" + fileIds.incrementAndGet() + ".bin";
+                return new Call(HttpRequest.newBuilder(uri("/files/move?from=" + path + "&to=" + to + (copy ? "&copy=true" : "")))
+                        .POST(HttpRequest.BodyPublishers.noBody())
+                        .build(), () -> {
+                            if (copy) uploaded.addLast(path);
+                            uploaded.addLast(to);
+                        });
+            }
+            default:
+                throw new IllegalArgumentException("unknown operation " + op);
+        }
+    }
+
+    // Uploads `data` to its own file and downloads it again, both at `bytesPerSecond`, until the deadline.
+    void slowClient(int id, byte[] data, int bytesPerSecond, long deadline) {
+        String path = "videos/loadgen-" + runId + "/slow-" + id + ".bin";
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            boolean uploading = true;
+            try {
+                HttpRequest put = HttpRequest.newBuilder(uri("/files/content?path=" + path))
+                        .PUT(HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(
+                                () -> new Throttled(new java.io.ByteArrayInputStream(data), bytesPerSecond)), data.length))
+                        .build();
+                if (slowClient.send(put, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+                    slowUploadErrors.incrementAndGet();
+                    continue;
+                }
+                slowUploads.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (System.nanoTime() - start) / 1000));
+                uploading = false;
+
+                start = System.nanoTime();
+                HttpResponse<InputStream> get = slowClient.send(HttpRequest.newBuilder(uri("/files/content?path=" + path)).GET().build(),
+                        HttpResponse.BodyHandlers.ofInputStream());
+                long received = 0;
+                try (InputStream in = new Throttled(get.body(), bytesPerSecond)) {
+                    byte[] buffer = new byte[8192];
+                    for (int n; (n = in.read(buffer)) > 0; ) received += n;
+                }
+                if (get.statusCode() != 200 || received != data.length) slowDownloadErrors.incrementAndGet();
+                else slowDownloads.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (System.nanoTime() - start) / 1000));
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                (uploading ? slowUploadErrors : slowDownloadErrors).incrementAndGet();
+            }
+        }
+    }
+
+    // Reads no faster than `bytesPerSecond`, in slices of a tenth of a second.
+    static class Throttled extends InputStream {
+        final InputStream in;
+        final int bytesPerSecond;
+        final long start = System.nanoTime();
+        long position;
+
+        Throttled(InputStream in, int bytesPerSecond) {
+            this.in = in;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long due = start + position * 1_000_000_000L / bytesPerSecond;
+            for (long wait; (wait = due - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+            int n = in.read(buffer, offset, Math.min(length, Math.max(1, bytesPerSecond / 10)));
+            if (n > 0) position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Polls the first server's /metrics once a second until the deadline and keeps the peaks.
+    void sample(long deadline) {
+        while (System.nanoTime() < deadline) {
+            String metrics = metrics(targets.get(0));
+            if (metrics != null) {
+                peakThreads.accumulateAndGet(number(metrics, "threads"), Math::max);
+                peakHeap.accumulateAndGet(number(metrics, "heapUsedBytes"), Math::max);
+            }
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    String metrics(String target) {
+        try {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(target + "/metrics")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            return response.statusCode() == 200 ? response.body() : null;
+        } catch (IOException | InterruptedException e) {
+            return null;
+        }
+    }
+
+    // Servers without a counter report it as -1.
+    static long number(String json, String field) {
+        Matcher matcher = Pattern.compile("\"" + field + "\":(-?[0-9.]+)").matcher(json);
+        return matcher.find() ? (long) Double.parseDouble(matcher.group(1)) : -1;
+    }
+
+    // Spreads file traffic over the three roots; writes go to a per-run folder so real files are never touched.
+    static String root(int room) {
+        return ROOTS.get(room % ROOTS.size());
+    }
+
+    String folder(int room) {
+        return root(room) + "/loadgen-" + runId;
+    }
+
+    URI uri(String pathAndQuery) {
+        return URI.create(targets.get((int) (nextTarget.getAndIncrement() % targets.size())) + pathAndQuery);
+    }
+
+    void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-8s %9s %7s %10s %9s %9s %9s %9s %9s%n",
+                "op", "count", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        Histogram all = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        long allErrors = 0;
+        for (Map.Entry<String, ConcurrentHistogram> entry : latencies.entrySet()) {
+            Histogram histogram = entry.getValue();
+            all.add(histogram);
+            allErrors += errors.get(entry.getKey()).get();
+            line(entry.getKey(), histogram, errors.get(entry.getKey()).get(), seconds);
+        }
+        line("all", all, allErrors, seconds);
+    }
+
+    void reportSlow(long elapsedNanos) {
+        line("slow-put", slowUploads, slowUploadErrors.get(), elapsedNanos / 1e9);
+        line("slow-get", slowDownloads, slowDownloadErrors.get(), elapsedNanos / 1e9);
+    }
+
+    void reportServer() {
+        System.out.printf("%nserver: peak threads %d, peak heap used %.1f MB%n", peakThreads.get(), peakHeap.get() / 1048576.0);
+        for (String target : targets) System.out.println(target + " /metrics after the run: " + metrics(target));
+    }
+
+    static void line(String op, Histogram h, long errors, double seconds) {
+        System.out.printf("%-8s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", op, h.getTotalCount(), errors,
+                h.getTotalCount() / seconds,
+                h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+                h.getMaxValue() / 1000.0);
+    }
+
+    void awaitReady() throws InterruptedException {
+        for (String target : targets) awaitReady(target);
+    }
+
+    void awaitReady(String target) throws InterruptedException {
+        HttpRequest probe = HttpRequest.newBuilder(URI.create(target + "/metrics")).GET().build();
+        for (int attempt = 0; attempt < 300; attempt++) {
+            try {
+                if (client.send(probe, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) return;
+            } catch (IOException e) {
+                // not listening yet
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("server at " + target + " did not come up");
+    }
+
+    // Starts one server at `address` ("localhost:port"); with a non-empty `cluster` it joins that cluster.
+    static Process spawn(String classpath, String address, List<String> cluster) throws IOException {
+        Path dataDir = Files.createTempDirectory("loadgen-data");
+        System.out.println("Server data and log in " + dataDir);
+        return spawn(classpath, address, cluster, dataDir, Map.of());
+    }
+
+    // The same with a given DATA_DIR, which may hold data from an earlier run, and extra environment.
+    static Process spawn(String classpath, String address, List<String> cluster, Path dataDir,
+                         Map<String, String> environment) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", classpath, "MessageServer");
+        builder.environment().put("PORT", address.substring(address.lastIndexOf(':') + 1));
+        builder.environment().put("DATA_DIR", dataDir.toString());
+        // The mix uploads, moves and deletes files, which the server only allows when asked to.
+        builder.environment().put("ENABLE_FILE_WRITES", "true");
+        if (!cluster.isEmpty()) {
+            builder.environment().put("NODE_ADDRESS", address);
+            builder.environment().put("CLUSTER_NODES", String.join(",", cluster));
+            builder.environment().put("CLUSTER_SECRET", "loadgen-" + ProcessHandle.current().pid());
+        }
+        builder.environment().putAll(environment);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(dataDir.resolve("server.log").toFile()));
+        return builder.start();
+    }
+
+    static int freePort() throws IOException {
+        try (java.net.ServerSocket socket = new java.net.ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+
+// Page reads from sealed segments through LogSegments' mappings, compared with the path they replaced:
+// Files.readAllLines of the file and a sublist of it. Cold reads start with the segment evicted from
+// the page cache (`dd iflag=nocache count=0`, which needs no root) and, for the mapped path, with a
+// fresh MessageStore, so the mapping is created and faulted in by the timed read. Warm reads repeat
+// on one store with everything cached. Allocation per read is measured on the reading thread. A
+// readAllLines read decodes a whole segment, so it gets its own, smaller number of warm reads.
+//
+//   java SegmentReadBenchmark [--dir <tmp>] [--segments 4] [--message-bytes 200] [--limit 50]
+//                             [--cold-reads 40] [--warm-reads 2000] [--warm-lines-reads 40]
+//
+// Runs in-process, so the server classes have to be on the classpath next to HdrHistogram.
+public class SegmentReadBenchmark {
+    static final String ROOM = "segments";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        Path dir = options.containsKey("dir") ? Paths.get(options.get("dir")) : Files.createTempDirectory("segment-bench");
+        int segmentCount = Integer.parseInt(options.getOrDefault("segments", "4"));
+        int messageBytes = Integer.parseInt(options.getOrDefault("message-bytes", "200"));
+        int limit = Integer.parseInt(options.getOrDefault("limit", "50"));
+        int coldReads = Integer.parseInt(options.getOrDefault("cold-reads", "40"));
+        int warmReads = Integer.parseInt(options.getOrDefault("warm-reads", "2000"));
+        int warmLinesReads = Integer.parseInt(options.getOrDefault("warm-lines-reads", "40"));
+
+        MessageStore store = new MessageStore(dir, "messages.txt");
+        Path log = store.logPath(ROOM);
+        String message = "x".repeat(messageBytes);
+        while (store.segments.list(ROOM, log).size() < segmentCount) {
+            MessageStore.Batch batch = new MessageStore.Batch();
+            for (int i = 0; i < 10000; i++) batch.add(message);
+            store.appendBatch(ROOM, batch);
+        }
+        List<LogSegments.Segment> sealed = new ArrayList<>(store.segments.list(ROOM, log).subList(0, segmentCount));
+        long records = sealed.get(sealed.size() - 1).endOffset();
+        System.out.printf("%d segments, %d records of %d bytes, %d per read, in %s%n", segmentCount, records, messageBytes, limit, dir);
+
+        Random random = new Random(1);
+        Result mappedCold = new Result(), linesCold = new Result(), mappedWarm = new Result(), linesWarm = new Result();
+        for (int i = 0; i < coldReads; i++) {
+            long offset = (long) (random.nextDouble() * (records - limit));
+            MessageStore fresh = new MessageStore(dir, "messages.txt");
+            fresh.segments.list(ROOM, log);
+            evict(sealed);
+            mappedCold.time(() -> fresh.read(ROOM, offset, limit));
+            evict(sealed);
+            linesCold.time(() -> readAllLines(sealed, offset, limit));
+        }
+        for (int i = 0; i < warmReads; i++) {
+            long offset = (long) (random.nextDouble() * (records - limit));
+            mappedWarm.time(() -> store.read(ROOM, offset, limit));
+            if (i < warmLinesReads) linesWarm.time(() -> readAllLines(sealed, offset, limit));
+        }
+
+        System.out.printf("%-20s %8s %10s %10s %10s %14s%n", "", "reads", "p50 ms", "p99 ms", "max ms", "alloc/read");
+        mappedCold.print("cold mapped");
+        linesCold.print("cold readAllLines");
+        mappedWarm.print("warm mapped");
+        linesWarm.print("warm readAllLines");
+    }
+
+    // The read path before segments were mapped, applied to the segment holding the offset.
+    static List<String> readAllLines(List<LogSegments.Segment> sealed, long offset, int limit) throws IOException {
+        for (LogSegments.Segment segment : sealed) {
+            if (offset >= segment.endOffset()) continue;
+            List<String> lines = Files.readAllLines(segment.path, StandardCharsets.UTF_8);
+            int from = (int) (offset - segment.baseOffset);
+            List<String> page = new ArrayList<>();
+            for (String line : lines.subList(from, Math.min(lines.size(), from + limit))) page.add(MessageStore.decode(line));
+            return page;
+        }
+        return List.of();
+    }
+
+    static void evict(List<LogSegments.Segment> sealed) throws IOException, InterruptedException {
+        for (LogSegments.Segment segment : sealed) {
+            Process dd = new ProcessBuilder("dd", "if=" + segment.path, "iflag=nocache", "count=0")
+                    .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (dd.waitFor() != 0) throw new IllegalStateException("dd could not evict " + segment.path);
+        }
+    }
+
+    interface Read {
+        List<String> run() throws IOException;
+    }
+
+    static class Result {
+        static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        final Histogram latency = new Histogram(TimeUnit.MINUTES.toMicros(1), 3);
+        long allocated;
+
+        void time(Read read) throws IOException {
+            long thread = Thread.currentThread().getId();
+            long before = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            List<String> page = read.run();
+            latency.recordValue(Math.max(1, (System.nanoTime() - start) / 1000));
+            allocated += THREADS.getThreadAllocatedBytes(thread) - before;
+            if (page.isEmpty()) throw new IllegalStateException("empty read");
+        }
+
+        void print(String name) {
+            System.out.printf("%-20s %8d %10.3f %10.3f %10.3f %11.1f KB%n", name, latency.getTotalCount(),
+                    latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+                    latency.getMaxValue() / 1000.0, allocated / 1024.0 / latency.getTotalCount());
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+// WebSocket fan-out load for MessageServer's /ws: opens --connections subscribers spread over --rooms
+// rooms, and sends --rate messages per second from --senders separate connections, open-loop like
+// LoadGenerator. Every message carries the time it was scheduled, so a subscriber can record how long it
+// took to reach it (fan-out latency) and a sender how long until its SAVED ack came back.
+//
+//   java SocketLoad [--target localhost:8080 | --spawn <classpath>] [--connections 2000] [--rooms 50]
+//                   [--senders 20] [--rate 200] [--duration 30]
+//
+// Delivered is compared with what full fan-out would deliver: every acknowledged message times the
+// subscribers of its room. Needs Java 21 and HdrHistogram, like LoadGenerator.
+public class SocketLoad {
+    static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    final HttpClient client = HttpClient.newHttpClient();
+    final String target;
+    final int rooms;
+    final long[] subscribersPerRoom;
+    final ConcurrentHistogram fanOut = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    final ConcurrentHistogram acks = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong expected = new AtomicLong();
+    final AtomicLong sendErrors = new AtomicLong();
+    final AtomicLong closed = new AtomicLong();
+
+    SocketLoad(String target, int rooms) {
+        this.target = target;
+        this.rooms = rooms;
+        this.subscribersPerRoom = new long[rooms];
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        int connections = Integer.parseInt(options.getOrDefault("connections", "2000"));
+        int rooms = Integer.parseInt(options.getOrDefault("rooms", "50"));
+        int senders = Integer.parseInt(options.getOrDefault("senders", "20"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "200"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+
+        Process server = null;
+        String target = options.getOrDefault("target", "localhost:8080");
+        if (options.containsKey("spawn")) {
+            target = "localhost:" + LoadGenerator.freePort();
+            server = LoadGenerator.spawn(options.get("spawn"), target, List.of());
+        }
+        try {
+            LoadGenerator http = new LoadGenerator(List.of("http://" + target), 1, 0, List.of());
+            if (server != null) http.awaitReady();
+            SocketLoad load = new SocketLoad(target, rooms);
+
+            long opening = System.nanoTime();
+            List<Subscriber> subscribers = load.open(connections, Subscriber::new);
+            List<Sender> sending = load.open(senders, Sender::new);
+            for (int i = 0; i < subscribers.size(); i++) subscribers.get(i).subscribe(i % rooms);
+            // Subscriptions are not acknowledged; give the server a moment to register them all.
+            Thread.sleep(1000);
+            System.out.printf("%d subscribers and %d senders connected in %.1f s%n",
+                    subscribers.size(), sending.size(), (System.nanoTime() - opening) / 1e9);
+
+            long elapsed = load.run(sending, rate, duration);
+            // Lets the last ticks drain before counting.
+            Thread.sleep(2000);
+            load.report(elapsed);
+            System.out.println("/metrics after the run: " + http.metrics("http://" + target));
+            for (Subscriber subscriber : subscribers) subscriber.socket.abort();
+            for (Sender sender : sending) sender.socket.abort();
+        } finally {
+            if (server != null) server.destroy();
+        }
+    }
+
+    interface Factory<T extends Connection> {
+        T create(SocketLoad load);
+    }
+
+    <T extends Connection> List<T> open(int count, Factory<T> factory) throws InterruptedException {
+        List<T> connections = new ArrayList<>();
+        List<CompletableFuture<WebSocket>> pending = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            T connection = factory.create(this);
+            connections.add(connection);
+            pending.add(client.newWebSocketBuilder().buildAsync(URI.create("ws://" + target + "/ws"), connection));
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                connections.get(i).socket = pending.get(i).get(30, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                throw new IllegalStateException("connection " + i + " failed: " + e);
+            }
+        }
+        return connections;
+    }
+
+    long run(List<Sender> senders, int rate, int durationSeconds) throws InterruptedException {
+        Random random = new Random(1);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long messages = (long) rate * durationSeconds;
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; i < messages; i++) {
+                long intended = start + i * interval;
+                for (long wait; (wait = intended - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+                Sender sender = senders.get(random.nextInt(senders.size()));
+                int room = random.nextInt(rooms);
+                executor.submit(() -> sender.send(room, intended));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-8s %9s %10s %9s %9s %9s %9s%n", "", "count", "per s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        line("acked", acks, seconds);
+        line("fan-out", fanOut, seconds);
+        System.out.printf("delivered %d of %d expected (%.2f%%), send errors %d, connections closed by the server %d%n",
+                delivered.get(), expected.get(), 100.0 * delivered.get() / Math.max(1, expected.get()),
+                sendErrors.get(), closed.get());
+    }
+
+    static void line(String name, Histogram h, double seconds) {
+        System.out.printf("%-8s %9d %10.1f %9.2f %9.2f %9.2f %9.2f%n", name, h.getTotalCount(), h.getTotalCount() / seconds,
+                h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0);
+    }
+
+    static ByteBuffer frame(byte op, String room, String payload) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + roomBytes.length + payloadBytes.length)
+                .put(op).put((byte) roomBytes.length).put(roomBytes).put(payloadBytes).flip();
+    }
+
+    static String room(int room) {
+        return "ws-" + room;
+    }
+
+    // Reassembles binary frames the client hands over in parts.
+    abstract static class Connection implements WebSocket.Listener {
+        final SocketLoad load;
+        volatile WebSocket socket;
+        ByteBuffer partial = ByteBuffer.allocate(4096);
+
+        Connection(SocketLoad load) {
+            this.load = load;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            if (partial.remaining() < data.remaining()) {
+                partial = ByteBuffer.allocate(Math.max(partial.capacity() * 2, partial.position() + data.remaining())).put(partial.flip());
+            }
+            partial.put(data);
+            if (last) {
+                ByteBuffer frame = partial.flip();
+                byte op = frame.get();
+                byte[] room = new byte[frame.get() & 0xff];
+                frame.get(room);
+                received(op, frame);
+                partial.clear();
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            load.closed.incrementAndGet();
+            return null;
+        }
+
+        abstract void received(byte op, ByteBuffer body);
+    }
+
+    static class Subscriber extends Connection {
+        Subscriber(SocketLoad load) {
+            super(load);
+        }
+
+        void subscribe(int room) {
+            synchronized (load.subscribersPerRoom) {
+                load.subscribersPerRoom[room]++;
+            }
+            socket.sendBinary(frame((byte) 1, room(room), ""), true).join();
+        }
+
+        @Override
+        void received(byte op, ByteBuffer body) {
+            if (op != 4) return;
+            long now = System.nanoTime();
+            int count = body.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] message = new byte[body.getInt()];
+                body.get(message);
+                long intended = Long.parseLong(new String(message, StandardCharsets.US_ASCII));
+                load.fanOut.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (now - intended) / 1000));
+            }
+            load.delivered.addAndGet(count);
+        }
+    }
+
+    // SAVED and ERROR replies come back in the order of the sends, so the oldest outstanding send is the
+    // one a reply belongs to.
+    static class Sender extends Connection {
+        final ReentrantLock sending = new ReentrantLock();
+        final ConcurrentLinkedQueue<long[]> outstanding = new ConcurrentLinkedQueue<>();
+
+        Sender(SocketLoad load) {
+            super(load);
+        }
+
+        // The client allows one outstanding send per socket, so sends on the same socket queue here.
+        void send(int room, long intended) {
+            sending.lock();
+            try {
+                outstanding.add(new long[] {room, intended});
+                socket.sendBinary(frame((byte) 3, room(room), Long.toString(intended)), true).join();
+            } catch (RuntimeException e) {
+                load.sendErrors.incrementAndGet();
+            } finally {
+                sending.unlock();
+            }
+        }
+
+        @Override
+        void received(byte op, ByteBuffer body) {
+            long[] send = outstanding.poll();
+            if (send == null) return;
+            if (op == 7) {
+                load.acks.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (System.nanoTime() - send[1]) / 1000));
+                synchronized (load.subscribersPerRoom) {
+                    load.expected.addAndGet(load.subscribersPerRoom[(int) send[0]]);
+                }
+            } else {
+                load.sendErrors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Restart time of a server with --gigabytes of logs, with and without a checkpoint. The logs are built
+// in-process: --rooms rooms filled round-robin with batches, a checkpoint, then --tail-messages more per
+// room that only the replay can pick up. Each run evicts every log from the page cache first
+// (`dd iflag=nocache count=0`), starts a server on the directory and measures how long until /metrics
+// answers and until every room has answered a read of its last page, which without a checkpoint means
+// indexing every sealed segment of the room.
+//
+//   java StartupBenchmark --spawn <classpath> [--dir <tmp>] [--gigabytes 4] [--rooms 8]
+//                         [--message-bytes 200] [--tail-messages 10000] [--runs 2]
+//
+// Builds the logs in-process, so the server classes have to be on this program's classpath as well.
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        Path dir = options.containsKey("dir") ? Paths.get(options.get("dir")) : Files.createTempDirectory("startup-bench");
+        double gigabytes = Double.parseDouble(options.getOrDefault("gigabytes", "4"));
+        int rooms = Integer.parseInt(options.getOrDefault("rooms", "8"));
+        int messageBytes = Integer.parseInt(options.getOrDefault("message-bytes", "200"));
+        int tailMessages = Integer.parseInt(options.getOrDefault("tail-messages", "10000"));
+        int runs = Integer.parseInt(options.getOrDefault("runs", "2"));
+
+        long[] counts = build(dir, (long) (gigabytes * (1L << 30)), rooms, messageBytes, tailMessages);
+        Path checkpoint = dir.resolve(Checkpoints.FILE_NAME);
+        Path aside = dir.resolve(Checkpoints.FILE_NAME + ".aside");
+        System.out.printf("%.1f GB in %d rooms, %d messages, in %s%n", logBytes(dir) / (double) (1L << 30), rooms,
+                Arrays.stream(counts).sum(), dir);
+
+        System.out.printf("%-14s %12s %16s%n", "", "ready ms", "all rooms ms");
+        for (int run = 0; run < runs; run++) {
+            for (boolean withCheckpoint : new boolean[] {false, true}) {
+                if (withCheckpoint) Files.copy(aside, checkpoint, StandardCopyOption.REPLACE_EXISTING);
+                else Files.move(checkpoint, aside, StandardCopyOption.REPLACE_EXISTING);
+                long[] times = start(options.get("spawn"), dir, counts);
+                System.out.printf("%-14s %12d %16d%n", withCheckpoint ? "checkpoint" : "no checkpoint", times[0], times[1]);
+            }
+        }
+    }
+
+    // Returns the message count of each room.
+    static long[] build(Path dir, long bytes, int rooms, int messageBytes, int tailMessages) throws IOException {
+        MessageStore store = new MessageStore(dir, "messages.txt");
+        long[] counts = new long[rooms];
+        String message = "x".repeat(messageBytes);
+        for (int room = 0; logBytes(dir) < bytes; room = (room + 1) % rooms) {
+            MessageStore.Batch batch = new MessageStore.Batch();
+            for (int i = 0; i < 50000; i++) batch.add(message);
+            store.appendBatch("startup-" + room, batch);
+            counts[room] += 50000;
+        }
+        new Checkpoints(store).write();
+        for (int room = 0; room < rooms; room++) {
+            MessageStore.Batch batch = new MessageStore.Batch();
+            for (int i = 0; i < tailMessages; i++) batch.add(message);
+            store.appendBatch("startup-" + room, batch);
+            counts[room] += tailMessages;
+        }
+        return counts;
+    }
+
+    static long logBytes(Path dir) throws IOException {
+        Path rooms = dir.resolve("rooms");
+        if (!Files.isDirectory(rooms)) return 0;
+        long bytes = 0;
+        try (Stream<Path> files = Files.list(rooms)) {
+            for (Path file : (Iterable<Path>) files::iterator) bytes += Files.size(file);
+        }
+        return bytes;
+    }
+
+    // Milliseconds until the server answered /metrics, and until every room answered its last page.
+    static long[] start(String classpath, Path dir, long[] counts) throws Exception {
+        try (Stream<Path> files = Files.list(dir.resolve("rooms"))) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Process dd = new ProcessBuilder("dd", "if=" + file, "iflag=nocache", "count=0")
+                        .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+                if (dd.waitFor() != 0) throw new IllegalStateException("dd could not evict " + file);
+            }
+        }
+        HttpClient client = HttpClient.newHttpClient();
+        String address = "localhost:" + LoadGenerator.freePort();
+        long start = System.nanoTime();
+        Process server = LoadGenerator.spawn(classpath, address, List.of(), dir, Map.of());
+        try {
+            long ready;
+            while (true) {
+                try {
+                    client.send(HttpRequest.newBuilder(URI.create("http://" + address + "/metrics")).build(),
+                            HttpResponse.BodyHandlers.discarding());
+                    ready = System.nanoTime();
+                    break;
+                } catch (IOException e) {
+                    Thread.sleep(5);
+                }
+            }
+            for (int room = 0; room < counts.length; room++) {
+                URI last = URI.create("http://" + address + "/messages?room=startup-" + room + "&offset=" + (counts[room] - 50) + "&limit=50");
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(last).build(), HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200 || !response.body().startsWith("[\"x")) {
+                    throw new IllegalStateException("room " + room + " answered " + response.statusCode());
+                }
+            }
+            long done = System.nanoTime();
+            return new long[] {(ready - start) / 1_000_000, (done - start) / 1_000_000};
+        } finally {
+            // Not destroy(): the shutdown hook would write a fresh checkpoint into the next run.
+            server.destroyForcibly().waitFor();
+        }
+    }
+}